@@ -0,0 +1,98 @@
+package regioClust;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Plain loops (Kernels.Scalar) against Kernels.IMPL, which is VectorKernels if the forks run with
+// --add-modules jdk.incubator.vector from the multi-release jar, see profile jmh of the pom.
+// rows: size of a cluster, gathered from n rows (cache-resident if n is small)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelsBenchmark {
+
+	@Param({ "65536", "4194304" })
+	int n;
+
+	@Param({ "1024", "65536" })
+	int rows;
+
+	private final Kernels.Impl scalar = new Kernels.Scalar(), impl = Kernels.IMPL;
+	private double[] x, y, a, b;
+	private int[] idx;
+
+	@Setup
+	public void setup() {
+		Random r = new Random(42);
+		x = new double[n];
+		y = new double[n];
+		for( int i = 0; i < n; i++ ) {
+			x[i] = r.nextGaussian();
+			y[i] = r.nextGaussian();
+		}
+		idx = new int[rows];
+		for( int i = 0; i < rows; i++ )
+			idx[i] = r.nextInt(n);
+		Arrays.sort(idx);
+		a = Arrays.copyOf(x, rows);
+		b = Arrays.copyOf(y, rows);
+	}
+
+	@Benchmark
+	public double dotScalar() {
+		return scalar.dot(x, y, idx);
+	}
+
+	@Benchmark
+	public double dotImpl() {
+		return impl.dot(x, y, idx);
+	}
+
+	@Benchmark
+	public double squaredDistanceGatheredScalar() {
+		return scalar.squaredDistance(x, 0, y, 0, idx);
+	}
+
+	@Benchmark
+	public double squaredDistanceGatheredImpl() {
+		return impl.squaredDistance(x, 0, y, 0, idx);
+	}
+
+	@Benchmark
+	public double squaredDistanceScalar() {
+		return scalar.squaredDistance(a, 0, b, 0, rows);
+	}
+
+	@Benchmark
+	public double squaredDistanceImpl() {
+		return impl.squaredDistance(a, 0, b, 0, rows);
+	}
+
+	@Benchmark
+	public double[] axpyScalar() {
+		scalar.axpy(1e-9, a, b);
+		return b;
+	}
+
+	@Benchmark
+	public double[] axpyImpl() {
+		impl.axpy(1e-9, a, b);
+		return b;
+	}
+}
@@ -0,0 +1,98 @@
+package regioClust;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+// Batch scoring of Predictor, time per row: locating the region of each point (by the hint of the previous one) and the
+// prediction by its model. The model has w x w unit squares in clusters of 4 columns, points are in random order or
+// in rows of the squares, where the hint is mostly right.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredictorBenchmark {
+
+	private static final int N = 1 << 20; // rows per call
+
+	@Param({ "20", "200" })
+	int w;
+
+	@Param({ "false", "true" })
+	boolean sorted;
+
+	private Predictor p;
+	private double[] x, cx, cy, out;
+
+	@Setup
+	public void setup() throws IOException {
+		GeometryFactory gf = new GeometryFactory();
+		Random r = new Random(42);
+		List<double[]> samples = new ArrayList<>();
+		List<Geometry> geoms = new ArrayList<>();
+		for( int i = 0; i < w; i++ )
+			for( int j = 0; j < w; j++ ) {
+				double v = r.nextDouble(), c = i / 4;
+				samples.add(new double[] { v, (c + 1) * v + c + r.nextGaussian() * 0.1 });
+				Coordinate[] ring = { new Coordinate(i, j), new Coordinate(i + 1, j), new Coordinate(i + 1, j + 1), new Coordinate(i, j + 1), new Coordinate(i, j) };
+				geoms.add(gf.createPolygon(gf.createLinearRing(ring), null));
+			}
+		List<int[]> cluster = new ArrayList<>();
+		for( int c = 0; c < (w + 3) / 4; c++ ) {
+			int cols = Math.min(4, w - 4 * c);
+			int[] rows = new int[cols * w];
+			for( int k = 0; k < rows.length; k++ )
+				rows[k] = (4 * c + k / w) * w + k % w;
+			cluster.add(rows);
+		}
+
+		File f = File.createTempFile("regioClust", ".model");
+		f.deleteOnExit();
+		Predictor.write(f, new LinearModel(samples, cluster, new int[] { 0 }, 1, false), geoms, new String[] { "x" }, 1);
+		p = Predictor.read(f);
+
+		x = new double[N];
+		cx = new double[N];
+		cy = new double[N];
+		out = new double[N];
+		for( int i = 0; i < N; i++ ) {
+			x[i] = r.nextDouble();
+			if( sorted ) { // N / w points per row of squares, left to right
+				cy[i] = (i / (N / w) + r.nextDouble()) % w;
+				cx[i] = (double) (i % (N / w)) * w / (N / w);
+			} else {
+				cx[i] = r.nextDouble() * w;
+				cy[i] = r.nextDouble() * w;
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public double[] predict() {
+		p.predict(x, cx, cy, out, true);
+		return out;
+	}
+}
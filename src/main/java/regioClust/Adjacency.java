@@ -0,0 +1,126 @@
+package regioClust;
+
+import java.util.Arrays;
+
+// Undirected graph over node ids 0..n-1. Neighbours of each node are kept in an open-addressed int set
+// (linear probing), every edge is stored in both directions, so it also serves as reverse link.
+public class Adjacency {
+
+	private static final int EMPTY = -1;
+
+	private int[][] tables;
+	private int[] sizes;
+
+	public Adjacency( int n ) {
+		this.tables = new int[n][];
+		this.sizes = new int[n];
+	}
+
+	public int size() {
+		return tables.length;
+	}
+
+	public int getDegree( int a ) {
+		return sizes[a];
+	}
+
+	public boolean contains( int a, int b ) {
+		int[] t = tables[a];
+		if( t == null )
+			return false;
+		for( int i = slot(b, t.length); t[i] != EMPTY; i = (i + 1) & (t.length - 1) )
+			if( t[i] == b )
+				return true;
+		return false;
+	}
+
+	public void addEdge( int a, int b ) {
+		if( a == b )
+			return;
+		add(a, b);
+		add(b, a);
+	}
+
+	public void removeEdge( int a, int b ) {
+		remove(a, b);
+		remove(b, a);
+	}
+
+	public int[] getNeighbours( int a ) {
+		int[] r = new int[sizes[a]];
+		int[] t = tables[a];
+		if( t != null ) {
+			int k = 0;
+			for( int v : t )
+				if( v != EMPTY )
+					r[k++] = v;
+		}
+		return r;
+	}
+
+	// b is merged into a: a gets the union of both neighbourhoods and all links to b are relabeled to a, O(deg(a)+deg(b))
+	public void merge( int a, int b ) {
+		for( int x : getNeighbours(b) ) {
+			remove(x, b);
+			if( x != a ) {
+				add(x, a);
+				add(a, x);
+			}
+		}
+		tables[b] = null;
+		sizes[b] = 0;
+	}
+
+	private static int slot( int v, int length ) {
+		return ( v * 0x9E3779B9 >>> 16 ^ v ) & (length - 1);
+	}
+
+	private void add( int a, int b ) {
+		int[] t = tables[a];
+		if( t == null ) {
+			t = tables[a] = new int[4];
+			Arrays.fill(t, EMPTY);
+		} else if( (sizes[a] + 1) * 4 > t.length * 3 ) { // keep load factor <= 0.75
+			int[] old = t;
+			t = tables[a] = new int[old.length * 2];
+			Arrays.fill(t, EMPTY);
+			for( int v : old )
+				if( v != EMPTY )
+					insert(t, v);
+		}
+		if( insert(t, b) )
+			sizes[a]++;
+	}
+
+	private static boolean insert( int[] t, int v ) {
+		int i = slot(v, t.length);
+		for( ; t[i] != EMPTY; i = (i + 1) & (t.length - 1) )
+			if( t[i] == v )
+				return false;
+		t[i] = v;
+		return true;
+	}
+
+	private void remove( int a, int b ) {
+		int[] t = tables[a];
+		if( t == null )
+			return;
+		int mask = t.length - 1;
+		int i = slot(b, t.length);
+		while( t[i] != b ) {
+			if( t[i] == EMPTY )
+				return;
+			i = (i + 1) & mask;
+		}
+		// backward shift deletion, no tombstones
+		for( int j = (i + 1) & mask; t[j] != EMPTY; j = (j + 1) & mask ) {
+			int s = slot(t[j], t.length);
+			if( ( (j - s) & mask ) >= ( (j - i) & mask ) ) {
+				t[i] = t[j];
+				i = j;
+			}
+		}
+		t[i] = EMPTY;
+		sizes[a]--;
+	}
+}
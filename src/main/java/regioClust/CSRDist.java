@@ -0,0 +1,33 @@
+package regioClust;
+
+import java.util.List;
+
+// distances from a sparse (e.g. banded) CSR matrix
+public class CSRDist extends MatrixDist {
+
+	private CSRMatrix m;
+
+	public CSRDist( CSRMatrix m ) {
+		if( !m.hasWeights() )
+			throw new RuntimeException("Matrix has no distances");
+		this.m = m;
+	}
+
+	public CSRDist( CSRMatrix m, List<double[]> samples ) {
+		this(m);
+		setSamples(samples);
+	}
+
+	@Override
+	public int getRowCount() {
+		return m.getRowCount();
+	}
+
+	@Override
+	public double dist( int i, int j ) {
+		long k = m.find(i, j);
+		if( k < 0 )
+			throw new RuntimeException("No distance between " + i + " and " + j);
+		return m.getWeight(k);
+	}
+}
@@ -0,0 +1,297 @@
+package regioClust;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+// Sparse n x n matrix in compressed sparse row format, with or without weights, read from a binary file by mapping it
+// into memory, nothing is copied. File layout, little endian:
+//  header, 32 bytes: magic "RCSR", version, n, bytes per weight (0, 4 or 8), number of entries nnz, 0
+//  n+1 row offsets (int64), nnz column ids (int32, sorted per row), padding to 8 bytes, nnz weights (float32/float64)
+public class CSRMatrix {
+
+	private static Logger log = Logger.getLogger(CSRMatrix.class);
+
+	public static final int MAGIC = 0x52534352; // "RCSR" read as little endian int
+	public static final int VERSION = 1;
+	private static final int HEADER = 32;
+	private static final int SEGMENT_BITS = 27; // elements per mapped segment, a single mapping is limited to 2GB
+
+	private int n, weightBytes;
+	private long nnz;
+	private LongBuffer offsets;
+	private IntBuffer[] cols;
+	private FloatBuffer[] floatWeights;
+	private DoubleBuffer[] doubleWeights;
+
+	private CSRMatrix() {
+	}
+
+	public int getRowCount() {
+		return n;
+	}
+
+	public long getNonZeros() {
+		return nnz;
+	}
+
+	public boolean hasWeights() {
+		return weightBytes > 0;
+	}
+
+	// entries of row i are at positions getOffset(i) ... getOffset(i+1)-1
+	public long getOffset( int i ) {
+		return offsets.get(i);
+	}
+
+	public int getColumn( long k ) {
+		return cols[(int) (k >>> SEGMENT_BITS)].get((int) (k & ((1 << SEGMENT_BITS) - 1)));
+	}
+
+	public double getWeight( long k ) {
+		int s = (int) (k >>> SEGMENT_BITS), i = (int) (k & ((1 << SEGMENT_BITS) - 1));
+		return weightBytes == 4 ? floatWeights[s].get(i) : doubleWeights[s].get(i);
+	}
+
+	// position of entry (i,j), -1 if there is none
+	public long find( int i, int j ) {
+		long lo = getOffset(i), hi = getOffset(i + 1) - 1;
+		while( lo <= hi ) {
+			long mid = (lo + hi) >>> 1;
+			int c = getColumn(mid);
+			if( c < j )
+				lo = mid + 1;
+			else if( c > j )
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	public int[][] toNeighbourLists() {
+		int[][] r = new int[n][];
+		for( int i = 0; i < n; i++ ) {
+			long o = getOffset(i);
+			r[i] = new int[(int) (getOffset(i + 1) - o)];
+			for( int k = 0; k < r[i].length; k++ )
+				r[i][k] = getColumn(o + k);
+		}
+		return r;
+	}
+
+	public static boolean isCSR( File fn ) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(fn));
+			return Integer.reverseBytes(in.readInt()) == MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				if( in != null )
+					in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public static CSRMatrix read( File fn ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fn, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer h = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			if( h.getInt(0) != MAGIC || h.getInt(4) != VERSION )
+				throw new IOException("Not a CSR matrix file of version " + VERSION + ": " + fn);
+
+			CSRMatrix m = new CSRMatrix();
+			m.n = h.getInt(8);
+			m.weightBytes = h.getInt(12);
+			m.nnz = h.getLong(16);
+
+			long pos = HEADER;
+			m.offsets = map(fc, pos, (m.n + 1) * 8L).asLongBuffer();
+			pos += (m.n + 1) * 8L;
+
+			int segs = (int) ((m.nnz + (1 << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+			m.cols = new IntBuffer[segs];
+			for( int s = 0; s < segs; s++ )
+				m.cols[s] = map(fc, pos + ((long) s << SEGMENT_BITS) * 4, getSegmentSize(m.nnz, s) * 4).asIntBuffer();
+			pos += m.nnz * 4;
+			pos = (pos + 7) & ~7L;
+
+			if( m.weightBytes == 4 ) {
+				m.floatWeights = new FloatBuffer[segs];
+				for( int s = 0; s < segs; s++ )
+					m.floatWeights[s] = map(fc, pos + ((long) s << SEGMENT_BITS) * 4, getSegmentSize(m.nnz, s) * 4).asFloatBuffer();
+			} else if( m.weightBytes == 8 ) {
+				m.doubleWeights = new DoubleBuffer[segs];
+				for( int s = 0; s < segs; s++ )
+					m.doubleWeights[s] = map(fc, pos + ((long) s << SEGMENT_BITS) * 8, getSegmentSize(m.nnz, s) * 8).asDoubleBuffer();
+			} else if( m.weightBytes != 0 )
+				throw new IOException("Invalid weight size: " + m.weightBytes);
+			return m;
+		} finally {
+			raf.close(); // mappings stay valid
+		}
+	}
+
+	private static MappedByteBuffer map( FileChannel fc, long pos, long size ) throws IOException {
+		MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		return b;
+	}
+
+	private static long getSegmentSize( long nnz, int s ) {
+		return Math.min(1L << SEGMENT_BITS, nnz - ((long) s << SEGMENT_BITS));
+	}
+
+	// in memory from the m entries (from[k], to[k], weights[k]), weights: null for none
+	public static CSRMatrix create( int n, int[] from, int[] to, double[] weights, int m ) {
+		return create(n, from, to, weights, m, false);
+	}
+
+	// offHeap: columns and weights in direct buffers, offsets stay on the heap
+	public static CSRMatrix create( int n, int[] from, int[] to, double[] weights, int m, boolean offHeap ) {
+		long[] offsets = new long[n + 1];
+		int[] cols = new int[m], order = new int[m];
+		sortRows(n, from, to, m, offsets, cols, order);
+
+		CSRMatrix c = new CSRMatrix();
+		c.n = n;
+		c.nnz = m;
+		c.weightBytes = weights == null ? 0 : 8;
+		c.offsets = LongBuffer.wrap(offsets);
+		int segs = (int) ((m + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+		c.cols = new IntBuffer[segs];
+		c.doubleWeights = weights == null ? null : new DoubleBuffer[segs];
+		double[] w = weights == null ? null : new double[m];
+		for( int k = 0; k < m && w != null; k++ )
+			w[k] = weights[order[k]];
+		for( int s = 0; s < segs; s++ ) {
+			int o = s << SEGMENT_BITS, len = (int) getSegmentSize(m, s);
+			c.cols[s] = IntBuffer.wrap(cols, o, len).slice();
+			if( w != null )
+				c.doubleWeights[s] = DoubleBuffer.wrap(w, o, len).slice();
+			if( offHeap ) {
+				IntBuffer ib = ByteBuffer.allocateDirect(len * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+				ib.put(c.cols[s]).clear();
+				c.cols[s] = ib;
+				if( w != null ) {
+					DoubleBuffer db = ByteBuffer.allocateDirect(len * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+					db.put(c.doubleWeights[s]).clear();
+					c.doubleWeights[s] = db;
+				}
+			}
+		}
+		return c;
+	}
+
+	// Rows by counting sort, then columns within rows. order: index of the entry at each position
+	private static void sortRows( int n, int[] from, int[] to, int m, long[] offsets, int[] cols, int[] order ) {
+		for( int k = 0; k < m; k++ )
+			offsets[from[k] + 1]++;
+		for( int i = 0; i < n; i++ )
+			offsets[i + 1] += offsets[i];
+		int[] pos = new int[n];
+		for( int k = 0; k < m; k++ )
+			order[(int) offsets[from[k]] + pos[from[k]]++] = k;
+		for( int i = 0; i < n; i++ ) {
+			int o = (int) offsets[i], e = (int) offsets[i + 1];
+			long[] c = new long[e - o]; // column and index of entry, sorted by column
+			for( int k = o; k < e; k++ )
+				c[k - o] = (long) to[order[k]] << 32 | order[k];
+			Arrays.sort(c);
+			for( int k = o; k < e; k++ ) {
+				cols[k] = (int) (c[k - o] >>> 32);
+				order[k] = (int) c[k - o];
+			}
+		}
+	}
+
+	// Writes the m entries (from[k], to[k], weights[k]) as CSR matrix with n rows. weights: null for none
+	public static void write( File fn, int n, int[] from, int[] to, double[] weights, int m, boolean float32 ) throws IOException {
+		long[] offsets = new long[n + 1];
+		int[] cols = new int[m], order = new int[m];
+		sortRows(n, from, to, m, offsets, cols, order);
+
+		int weightBytes = weights == null ? 0 : float32 ? 4 : 8;
+		RandomAccessFile raf = new RandomAccessFile(fn, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel fc = raf.getChannel();
+			ByteBuffer b = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(weightBytes).putLong(m).putLong(0);
+			for( long o : offsets )
+				b = flush(fc, b, 8).putLong(o);
+			for( int c : cols )
+				b = flush(fc, b, 4).putInt(c);
+			if( m % 2 != 0 )
+				b = flush(fc, b, 4).putInt(0);
+			for( int k = 0; k < m && weightBytes > 0; k++ ) {
+				if( weightBytes == 4 )
+					b = flush(fc, b, 4).putFloat((float) weights[order[k]]);
+				else
+					b = flush(fc, b, 8).putDouble(weights[order[k]]);
+			}
+			flush(fc, b, b.capacity());
+		} finally {
+			raf.close();
+		}
+	}
+
+	// writes b if less than free bytes remain
+	private static ByteBuffer flush( FileChannel fc, ByteBuffer b, int free ) throws IOException {
+		if( b.remaining() < free ) {
+			b.flip();
+			while( b.hasRemaining() )
+				fc.write(b);
+			b.clear();
+		}
+		return b;
+	}
+
+	// Converts a key-value CSV file (id1,id2[,dist], may be gzipped) into a CSR matrix file. n: number of rows, if < 0
+	// the largest id + 1
+	public static void convert( File csv, File fn, int n, boolean float32, int threads ) throws IOException {
+		KeyValueReader.Entries e = KeyValueReader.read(csv, threads);
+		write(fn, n < 0 ? e.getRowCount() : n, e.from, e.to, e.values, e.m, float32);
+	}
+
+	// converter: <in.csv> <out> [rows] [-float] [-dense]
+	public static void main( String[] args ) throws IOException {
+		if( args.length < 2 ) {
+			System.out.println("Usage: CSRMatrix <in.csv> <out> [rows] [-float] [-dense]");
+			return;
+		}
+		boolean float32 = Arrays.asList(args).contains("-float");
+		boolean dense = Arrays.asList(args).contains("-dense");
+		int n = args.length > 2 && !args[2].startsWith("-") ? Integer.parseInt(args[2]) : -1;
+		long time = System.currentTimeMillis();
+		if( dense ) {
+			KeyValueReader.Entries e = KeyValueReader.read(new File(args[0]), Runtime.getRuntime().availableProcessors());
+			if( e.values == null )
+				throw new IOException("No distances in " + args[0]);
+			DenseMatrixDist d = DenseMatrixDist.create(n < 0 ? e.getRowCount() : n, e.from, e.to, e.values, e.m, float32, false);
+			if( d == null )
+				throw new IOException("Not all pairs have a distance, a dense matrix needs all of them: " + args[0]);
+			d.write(new File(args[1]));
+		} else
+			convert(new File(args[0]), new File(args[1]), n, float32, Runtime.getRuntime().availableProcessors());
+		log.info("Converted " + args[0] + " in " + (System.currentTimeMillis() - time) + "ms");
+	}
+}
@@ -2,21 +2,8 @@ package regioClust;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.PriorityQueue;
-import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
@@ -24,333 +11,381 @@ public class Clustering {
 
 	private static Logger log = Logger.getLogger(Clustering.class);
 
+	private static final int PARALLEL_COSTS = 256;
+
 	public enum HierarchicalClusteringType {
 		single_linkage, complete_linkage, average_linkage, ward
 	};
 		
-	public static List<TreeNode> cutTree( Collection <TreeNode> roots, int numCluster ) {
-		Comparator<TreeNode> comp = new Comparator<TreeNode>() {
-			@Override
-			public int compare(TreeNode o1, TreeNode o2) {
-				return -Integer.compare(o1.age, o2.age);
+	public static List<int[]> treeToCluster( Dendrogram tree, int[] nodes ) {
+		List<int[]> clusters = new ArrayList<int[]>();
+		for( int node : nodes ) 
+			clusters.add( tree.getContents(node) );
+		return clusters;
+	}
+	
+	public static int[] concat( int[] a, int[] b ) {
+		int[] c = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+	
+	// count, column sums and error sum of squares of a cluster, enough to get ward costs without touching its members
+	public static class WardStats {
+		public int n;
+		public double[] sum;
+		public double ss;
+		
+		public WardStats( List<double[]> samples, int[] rows, Dist<double[]> dist ) {
+			this.n = rows.length;
+			this.sum = new double[samples.get(rows[0]).length];
+			for( int r : rows )
+				for( int i = 0; i < sum.length; i++ )
+					sum[i] += samples.get(r)[i];
+			
+			double[] mean = getMean();
+			for( int r : rows ) {
+				double d = dist.dist(mean, samples.get(r));
+				this.ss += d * d;
 			}
-		};
+		}
 		
-		PriorityQueue<TreeNode> pq = new PriorityQueue<TreeNode>(1, comp);
-		pq.addAll( roots );
-		while( pq.size() < numCluster ) { 
-			TreeNode tn = pq.poll();
-			if( tn == null )
-				throw new RuntimeException("Too few observations for the desired number of clusters!");
+		// cols: the columns a Euclidean distance looks at, as from DataFrame.getColumns(); means are then of these columns only
+		public WardStats( double[][] cols, int[] rows ) {
+			this.n = rows.length;
+			this.sum = new double[cols.length];
+			for( int i = 0; i < sum.length; i++ )
+				sum[i] = Kernels.sum(cols[i], rows);
 			
-			for( TreeNode child : tn.children )
-				if( child != null )
-					pq.add(child);
+			double[] mean = getMean();
+			for( int r : rows )
+				this.ss += Kernels.squaredDistance(mean, cols, r);
 		}
-		return new ArrayList<>(pq);
-	}
 		
-	public static Set<TreeNode> getSubtree( TreeNode node ) {
-		Set<TreeNode> s = new HashSet<>();
-		s.add(node);
-		for( TreeNode child : node.children ) {
-			if( child == null )
-				continue;
-			s.addAll( getSubtree(child) );
+		public WardStats( int n, double[] sum, double ss ) {
+			this.n = n;
+			this.sum = sum;
+			this.ss = ss;
+		}
+		
+		public double[] getMean() {
+			double[] mean = new double[sum.length];
+			for( int i = 0; i < sum.length; i++ )
+				mean[i] = sum[i] / n;
+			return mean;
+		}
+		
+		// increase of the error sum of squares if merged with o: n1*n2/(n1+n2) * ||mean1-mean2||^2
+		public double getMergeCost( WardStats o, Dist<double[]> dist ) {
+			double d = dist.dist( getMean(), o.getMean() );
+			return (double)n * o.n / (n + o.n) * d * d;
+		}
+		
+		public WardStats merge( WardStats o, double cost ) {
+			double[] s = new double[sum.length];
+			Kernels.add(sum, o.sum, s);
+			return new WardStats( n + o.n, s, ss + o.ss + cost );
 		}
-		return s;
-	}
-	
-	public static Set<TreeNode> getLeafLayer( TreeNode node ) {
-		Set<TreeNode> leafLayer = new HashSet<>();
-		for( TreeNode n : getSubtree(node) )
-			if( n.age == 0 )
-				leafLayer.add(n);
-		return leafLayer;
 	}
 	
-	public static List<Set<double[]>> treeToCluster(Collection<TreeNode> roots) {
-		List<Set<double[]>> clusters = new ArrayList<Set<double[]>>();
-		for( TreeNode r : roots ) 
-			clusters.add( getContents(r) );
-		return clusters;
+	// contiguity between the clusters of layer (nodes of tree), as neighbour lists of indices into layer, from the contiguity of rows
+	public static int[][] getLayerContiguity( Dendrogram tree, int[] layer, int[][] cm ) {
+		int[] label = new int[cm.length];
+		Arrays.fill(label, -1);
+		int[] order = tree.getOrder();
+		for( int i = 0; i < layer.length; i++ )
+			for( int j = tree.getStart(layer[i]), e = j + tree.getSize(layer[i]); j < e; j++ )
+				label[order[j]] = i;
+		
+		Adjacency adj = new Adjacency(layer.length);
+		for( int r = 0; r < cm.length; r++ )
+			for( int nb : cm[r] )
+				if( label[r] >= 0 && label[nb] >= 0 )
+					adj.addEdge(label[r], label[nb]);
+		
+		int[][] ncm = new int[layer.length][];
+		for( int i = 0; i < ncm.length; i++ )
+			ncm[i] = adj.getNeighbours(i);
+		return ncm;
 	}
 	
-	// Gets contents of a node (contents of leaf nodes with node of tree with node as root node)
-	public static Set<double[]> getContents( TreeNode node ) {
-		Set<double[]> contents = new HashSet<>();
-		for( TreeNode n : getLeafLayer(node) )
-			contents.addAll(n.contents);
-		return contents;
+	public static Dendrogram getHierarchicalClusterTree( List<double[]> samples, int[][] cm, Dist<double[]> dist, HierarchicalClusteringType type ) {
+		Dendrogram tree = new Dendrogram(samples.size());
+		getHierarchicalClusterTree(samples, tree, tree.getLeaves(), cm, dist, type, Integer.MAX_VALUE, Math.max(1 , Runtime.getRuntime().availableProcessors() -1 ) );
+		return tree;
 	}
 	
-	public static class TreeNode {		
-		public Set<double[]> contents = null; // only nodes of age 0 should ever have contents! 
-		public int age = 0;
-		public double cost = 0; 
-		public List<TreeNode> children = new ArrayList<TreeNode>();
+	// candidate merge of two clusters (ids and their versions at creation time), ordered by cost
+	public static class Merge implements Comparable<Merge> {
+		public int a, b, versionA, versionB;
+		public double cost;
 		
-		public TreeNode( int age, double cost, Set<double[]> contents ) {
-			this(age,cost);
-			this.contents = contents;
-		}
-		
-		public TreeNode( int age, double cost ) {
-			this.age = age;
+		public Merge( int a, int versionA, int b, int versionB, double cost ) {
+			this.a = a;
+			this.versionA = versionA;
+			this.b = b;
+			this.versionB = versionB;
 			this.cost = cost;
 		}
 		
-		public void setChildren( List<TreeNode> children ) { this.children = children; }
-		public void setContents( Set<double[]> contents ) { this.contents = contents; }
-		public String toString() { return "["+age+", "+cost+"]"; }
+		@Override
+		public int compareTo( Merge o ) {
+			return Double.compare(cost, o.cost);
+		}
 	}
 	
-	public static List<TreeNode> samplesToTree(List<double[]> samples ) {
-		List<TreeNode> l = new ArrayList<TreeNode>();
-		for( double[] d : samples ) {
-			TreeNode tn = new TreeNode(0,0);
-			tn.contents = new HashSet<>();
-			tn.contents.add(d);
-			l.add(tn);
-		}	
-		return l;
+	// distances of rows, looked up directly if dist is a matrix
+	public static RowDist getRowDist( final List<double[]> samples, final Dist<double[]> dist ) {
+		if( dist instanceof RowDist )
+			return (RowDist)dist;
+		return new RowDist() {
+			@Override
+			public double dist(int i, int j) {
+				return dist.dist(samples.get(i), samples.get(j));
+			}
+		};
 	}
 	
-
-	public static <T> Set<T> getNodes(Map<T, Set<T>> cm) {
-		Set<T> nodes = new HashSet<T>(cm.keySet());
-		for (T a : cm.keySet())
-			nodes.addAll(cm.get(a));
-		return nodes;
+	// Euclidean distances of rows in cols, as those of an EuclideanDist of the columns it looks at
+	public static RowDist getRowDist( final double[][] cols ) {
+		return new RowDist() {
+			@Override
+			public double dist(int i, int j) {
+				double s = 0;
+				for( double[] c : cols ) {
+					double d = c[i] - c[j];
+					s += d * d;
+				}
+				return Math.sqrt(s);
+			}
+		};
 	}
 	
-	public static Map<TreeNode,Set<TreeNode>> samplesCMtoTreeCM(Map<double[], Set<double[]>> cm) {
-		Set<double[]> s = getNodes(cm);
-		List<TreeNode> l = samplesToTree( new ArrayList<>(s) );
-		
-		Map<TreeNode,Set<TreeNode>> ncm = new HashMap<>();
-		for( TreeNode tnA : l ) {
-			double[] a = tnA.contents.iterator().next();
-			
-			Set<TreeNode> cs = new HashSet<>();
-			for( double[] b : cm.get(a) )
-				for( TreeNode tnB : l )
-					if( tnB.contents.contains(b) )
-						cs.add(tnB);
-			ncm.put(tnA, cs);
+	public static double getLinkage( HierarchicalClusteringType type, RowDist rd, int[] s1, int[] s2, WardStats w1, WardStats w2, Dist<double[]> dist ) {
+		double s = Double.NaN;
+		if (HierarchicalClusteringType.ward == type) {
+			// increase of error sum of squares, closed form from counts and column sums
+			s = w1.getMergeCost(w2, dist);
+		} else if (HierarchicalClusteringType.single_linkage == type) {
+			s = Double.MAX_VALUE;
+			for (int r1 : s1) 
+				for (int r2 : s2) 
+					s = Math.min(s, rd.dist(r1, r2) );				
+		} else if (HierarchicalClusteringType.complete_linkage == type) {
+			s = Double.MIN_VALUE;
+			for (int r1 : s1)
+				for (int r2 : s2)
+					s = Math.max(s, rd.dist(r1, r2) );
+		} else if (HierarchicalClusteringType.average_linkage == type) {
+			s = 0;
+			for (int r1 : s1) 
+				for (int r2 : s2) 
+					s += rd.dist(r1, r2);
+			s /= ((double)s1.length * s2.length);
 		}
-		return ncm;
+		return s;
 	}
 	
-	public static List<TreeNode> getHierarchicalClusterTree( List<TreeNode> leafLayer, Map<TreeNode,Set<TreeNode>> cm, Dist<double[]> dist, HierarchicalClusteringType type ) {
-		return getHierarchicalClusterTree(leafLayer, cm, dist, type, Integer.MAX_VALUE, Math.max(1 , Runtime.getRuntime().availableProcessors() -1 ) );
+	// Lance-Williams recurrence, linkage of the union of clusters a and b (sizes na, nb) to a third cluster from its linkages to a and b
+	public static double getLanceWilliams( HierarchicalClusteringType type, double dak, double dbk, int na, int nb ) {
+		if (HierarchicalClusteringType.single_linkage == type)
+			return Math.min(dak, dbk);
+		else if (HierarchicalClusteringType.complete_linkage == type)
+			return Math.max(dak, dbk);
+		else if (HierarchicalClusteringType.average_linkage == type)
+			return (na * dak + nb * dbk) / (na + nb);
+		throw new RuntimeException("No Lance-Williams update for "+type);
 	}
 	
+	// Merges the clusters of layer (nodes of tree), merge nodes are added to tree.
+	// cm: neighbour lists of indices into layer, null if every pair may be merged
 	//@return roots of one or more trees
-	public static List<TreeNode> getHierarchicalClusterTree( List<TreeNode> leafLayer, final Map<TreeNode,Set<TreeNode>> cm, Dist<double[]> dist, HierarchicalClusteringType type, int minSize, int threads ) {
-						
-		class FlatSet<T> extends HashSet<T> {
-			private static final long serialVersionUID = -1960947872875758352L;
-			public int hashCode = 0;
-			
-			@Override 
-			public boolean add( T t ) {
-				hashCode += t.hashCode();
-				return super.add(t);
-			}
+	public static int[] getHierarchicalClusterTree( final List<double[]> samples, final Dendrogram tree, int[] layer, int[][] cm, final Dist<double[]> dist, final HierarchicalClusteringType type, final int minSize, int threads ) {
+		return getHierarchicalClusterTree(samples, null, tree, layer, cm, dist, type, minSize, threads, PairCostCache.DEFAULT_MAX_ENTRIES);
+	}
+	
+	// cols: the columns of samples that dist (an EuclideanDist) looks at, see DataFrame.getColumns(), null to evaluate dist
+	// on rows. Distances and ward statistics are then computed from these columns only and samples may be null.
+	// maxCosts: max. number of cached linkages, evicted ones are computed again from the members
+	public static int[] getHierarchicalClusterTree( final List<double[]> samples, double[][] cols, final Dendrogram tree, int[] layer, int[][] cm, final Dist<double[]> dist, final HierarchicalClusteringType type, final int minSize, int threads, long maxCosts ) {
+		// rows of active clusters by node id, only needed by the linkages that look at all pairs of members
+		final int[][] contents = type == HierarchicalClusteringType.ward ? null : new int[tree.getCapacity()][];
+		final WardStats[] wardStats = type == HierarchicalClusteringType.ward ? new WardStats[tree.getCapacity()] : null;
+		if( !(dist instanceof EuclideanDist) )
+			cols = null;
+		final Dist<double[]> wardDist = cols != null ? new EuclideanDist() : dist;
+		final RowDist rd = cols != null ? getRowDist(cols) : getRowDist(samples, dist);
+		// linkages of pairs of clusters by node id, bounded and safe to fill from the cost workers
+		final PairCostCache costs = type == HierarchicalClusteringType.ward ? null : new PairCostCache(tree.getCapacity(), maxCosts);
+		for( int node : layer ) {
+			int[] c = tree.getContents(node);
+			if( contents != null )
+				contents[node] = c;
+			else
+				wardStats[node] = cols != null ? new WardStats(cols, c) : new WardStats(samples, c, dist);
+		}
+		
+		return agglomerate(tree, layer, cm, new MergeCriterion() {
+			// children of the last merge, their linkages are needed for the costs of the merge node
+			int[] retired = new int[0];
 			
 			@Override
-			public boolean addAll( Collection<? extends T> c ) {
-				hashCode += c.hashCode();
-				return super.addAll(c);
+			public boolean isMergeable(int a, int b) {
+				return tree.getSize(a) < minSize || tree.getSize(b) < minSize;
 			}
-			
+
 			@Override
-			public int hashCode() {
-				return hashCode;
-			}
-		}
+			public double getCost(int a, int b) {
+				if( wardStats != null )
+					return getLinkage(type, rd, null, null, wardStats[a], wardStats[b], wardDist);
+				double c = costs.get(a, b);
+				if( !Double.isNaN(c) )
+					return c;
 				
-		List<TreeNode> tree = new ArrayList<>();
-		Map<TreeNode,Set<double[]>> curLayer = new HashMap<>();
-		
-		Map<TreeNode, Double> ssCache = new HashMap<TreeNode, Double>();
-		Map<TreeNode, Map<TreeNode,Double>> unionCache = new ConcurrentHashMap<>();
-					
-		int length = getContents(leafLayer.get(0)).iterator().next().length;
-		int age = 0;
-		for( TreeNode tn : leafLayer ) {
-			
-			age = Math.max( age, tn.age );
-			tree.add(tn);
-			
-			Set<double[]> content = getContents(tn);
-			curLayer.put(tn, content);
-			ssCache.put(tn, DataUtils.getSumOfSquares(content, dist));
-		}
-						
-		// copy of connected map
-		final Map<TreeNode, Set<TreeNode>> connected = new HashMap<TreeNode, Set<TreeNode>>();
-		if (cm != null) 
-			for( Entry<TreeNode,Set<TreeNode>> e : cm.entrySet() )
-				connected.put(e.getKey(),new HashSet<TreeNode>(e.getValue()));
-				
-		while (curLayer.size() > 1 ) {
+				// the younger one is the merge node if a merge has just been made
+				int m = Math.max(a, b), k = Math.min(a, b);
+				if( !tree.isLeaf(m) && contents[tree.getLeft(m)] != null ) {
+					int l = tree.getLeft(m), r = tree.getRight(m);
+					c = getLanceWilliams(type, getRetiredCost(l, k), getRetiredCost(r, k), tree.getSize(l), tree.getSize(r));
+				} else
+					c = getLinkage(type, rd, contents[a], contents[b], null, null, dist);
+				costs.put(a, b, c);
+				return c;
+			}
 			
-			if( curLayer.size() % 1000 == 0 )
-				log.debug(curLayer.size());
-						
-			List<TreeNode> cl = new ArrayList<>(curLayer.keySet());
-						
-			ExecutorService es = Executors.newFixedThreadPool(threads);
-			List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
-			for (int t = 0; t < threads; t++) {
-				final int T = t;
+			// pairs of a retired cluster were not necessarily connected before, so they might not be cached
+			private double getRetiredCost(int r, int k) {
+				double c = costs.get(r, k);
+				return Double.isNaN(c) ? getLinkage(type, rd, contents[r], contents[k], null, null, dist) : c;
+			}
 
-				futures.add(es.submit(new Callable<double[]>() {
-					@Override
-					public double[] call() throws Exception {
-						int c1 = -1, c2 = -1;
-						double sMin = Double.MAX_VALUE;
-						
-						for (int i = T; i < cl.size() - 1; i += threads) {
-							TreeNode l1 = cl.get(i);
-							
-							Set<TreeNode> nbs = null;
-							if( cm != null )
-								if( connected.containsKey(l1) )
-									nbs = connected.get(l1);
-								else
-									continue;
-			
-							for (int j = i + 1; j < cl.size(); j++) {
-								TreeNode l2 = cl.get(j);
-								
-								if( nbs != null && !nbs.contains(l2) ) // disjoint
-									continue;
-								
-								if( curLayer.get(l1).size() >= minSize && curLayer.get(l2).size() >= minSize )
-									continue;
-																							
-								double s = Double.NaN;
-								if (HierarchicalClusteringType.ward == type) {																														
-									// get error sum of squares
-									if (!unionCache.containsKey(l1) || !unionCache.get(l1).containsKey(l2)) {
-																			
-										// calculate mean and sum of squares, slightly faster than actually forming a union
-										double[] mean = new double[length];
-										for (int l = 0; l < length; l++) {
-											for (double[] d : curLayer.get(l1) )
-												mean[l] += d[l];
-											for (double[] d : curLayer.get(l2) )
-												mean[l] += d[l];
-										}
-																	
-										for (int l = 0; l < length; l++)
-											mean[l] /= curLayer.get(l1).size()+curLayer.get(l2).size();
-										
-										double ssUnion = 0;
-										for( double[] d : curLayer.get(l1) ) {
-											double di = dist.dist(mean, d);
-											ssUnion += di * di;
-										}
-										for( double[] d : curLayer.get(l2) ) {
-											double di = dist.dist(mean, d);
-											ssUnion += di * di;
-										}
-										
-										if (!unionCache.containsKey(l1))
-											unionCache.put( l1, new HashMap<TreeNode, Double>() );
-										unionCache.get(l1).put(l2, ssUnion);
-									}													
-									s = unionCache.get(l1).get(l2) - ( ssCache.get(l1) + ssCache.get(l2) );	
-								} else if (HierarchicalClusteringType.single_linkage == type) {
-									s = Double.MAX_VALUE;
-									for (double[] d1 : curLayer.get(l1)) 
-										for (double[] d2 : curLayer.get(l2)) 
-											s = Math.min(s, dist.dist(d1, d2) );				
-								} else if (HierarchicalClusteringType.complete_linkage == type) {
-									s = Double.MIN_VALUE;
-									for (double[] d1 : curLayer.get(l1))
-										for (double[] d2 : curLayer.get(l2))
-											s = Math.max(s, dist.dist(d1, d2) );
-								} else if (HierarchicalClusteringType.average_linkage == type) {
-									s = 0;
-									for (double[] d1 : curLayer.get(l1)) 
-										for (double[] d2 : curLayer.get(l2)) 
-											s += dist.dist(d1, d2);
-									s /= (curLayer.get(l1).size() * curLayer.get(l2).size());
-								}
-								if ( s < sMin) {
-									c1 = i;
-									c2 = j;
-									sMin = s;
-								}
-							}
-						}
-					return new double[] { c1, c2, sMin };
+			@Override
+			public void merge(int a, int b, int m, double cost) {
+				if( contents != null ) {
+					contents[m] = concat(contents[a], contents[b]);
+					for( int r : retired ) {
+						contents[r] = null;
+						costs.invalidate(r);
 					}
-				}));
+					retired = new int[] { a, b };
+				} else {
+					wardStats[m] = wardStats[a].merge( wardStats[b], cost );
+					wardStats[a] = wardStats[b] = null;
+				}
 			}
-			es.shutdown();
-			
-			TreeNode c1 = null, c2 = null;
-			double sMin = Double.MAX_VALUE;			
-			try {
-				for (Future<double[]> f : futures) {
-					double[] d = f.get();
-					if (d[2] < sMin) {
-						c1 = cl.get((int) d[0]);
-						c2 = cl.get((int) d[1]);
-						sMin = d[2];
+		}, threads);
+	}
+	
+	// decides which clusters (nodes of the tree) may be merged and at what cost
+	public interface MergeCriterion {
+		public boolean isMergeable( int a, int b );
+		
+		// called concurrently, must not modify state
+		public double getCost( int a, int b );
+		
+		// a and b have been merged into m
+		public void merge( int a, int b, int m, double cost );
+	}
+	
+	// Greedily merges the pair of connected clusters (any pair if cm == null) with the lowest cost. Costs are kept
+	// in a priority queue, after a merge only costs of pairs with the merge node are computed. The merge node takes
+	// over the slot of one of its children, a version stamp per slot tells stale queue entries apart.
+	// layer: nodes of tree to start from, merge nodes are added to tree
+	//@return roots of one or more trees
+	public static int[] agglomerate( Dendrogram tree, int[] layer, int[][] cm, final MergeCriterion mc, int threads ) {
+		final int[] nodes = layer.clone(); // node of each slot, -1 if merged into another slot
+		final int[] version = new int[nodes.length];
+		
+		final Adjacency adj = cm == null ? null : new Adjacency(nodes.length);
+		if( cm != null )
+			for( int i = 0; i < cm.length; i++ )
+				for( int nb : cm[i] )
+					adj.addEdge(i, nb);
+		
+		// initial costs of all pairs of connected clusters
+		int chunks = threads * ParallelUtils.CHUNKS_PER_THREAD;
+		int[] bounds = cm == null ? ParallelUtils.getTriangularBounds(nodes.length, chunks) : ParallelUtils.getBounds(nodes.length, chunks);
+		
+		PriorityQueue<Merge> pq = new PriorityQueue<>();
+		for( List<Merge> l : ParallelUtils.invokeAll(threads, bounds, new ParallelUtils.RangeCallable<List<Merge>>() {
+			@Override
+			public List<Merge> call(int from, int to) {
+				List<Merge> l = new ArrayList<>();
+				for (int i = from; i < to; i++) {
+					if( adj == null ) {
+						for( int j = i + 1; j < nodes.length; j++ )
+							if( mc.isMergeable(nodes[i], nodes[j]) )
+								l.add( new Merge(i, 0, j, 0, mc.getCost(nodes[i], nodes[j]) ) );
+					} else {
+						for( int j : adj.getNeighbours(i) )
+							if( j > i && mc.isMergeable(nodes[i], nodes[j]) )
+								l.add( new Merge(i, 0, j, 0, mc.getCost(nodes[i], nodes[j]) ) );
 					}
 				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException e) {
-				e.printStackTrace();
+				return l;
 			}
-
-			if (c1 == null && c2 == null) 
-				return new ArrayList<TreeNode>( curLayer.keySet() );
-												
-			// create merge node, remove c1,c2		
-			Set<double[]> union = new FlatSet<double[]>(); 
-			union.addAll(curLayer.remove(c1));
-			union.addAll(curLayer.remove(c2));	
+		}))
+			pq.addAll(l);
+		
+		int size = nodes.length;
+		while ( size > 1 && !pq.isEmpty() ) {
 			
-			TreeNode mergeNode = new TreeNode(++age, sMin);
-			mergeNode.children = Arrays.asList(new TreeNode[]{ c1, c2 });
+			Merge m = pq.poll();
+			if( version[m.a] != m.versionA || version[m.b] != m.versionB )
+				continue;
 			
-			// update cache
-			if( type == HierarchicalClusteringType.ward ) {
-				ssCache.remove(c1);
-				ssCache.remove(c2);
-				ssCache.put( mergeNode, unionCache.get(c1).get(c2) );
-				unionCache.remove(c1);
-			} 
-									
-			// add nodes
-			curLayer.put(mergeNode,union);
-			tree.add(mergeNode);
+			if( size % 1000 == 0 )
+				log.debug(size);
 			
-			// update connected map
-			if( cm != null ) {
-				// 1. merge values of c1 and c2 and put union
-				Set<TreeNode> ns = connected.remove(c1);
-				ns.addAll( connected.remove(c2) );
-				connected.put(mergeNode, ns);
-				
-				// 2. replace all values c1,c2 by merged node
-				for( Set<TreeNode> s : connected.values() ) {
-					if( s.contains(c1) || s.contains(c2)) {
-						s.remove(c1);
-						s.remove(c2);
-						s.add(mergeNode);
-					}
-				}
+			final int a = m.a, b = m.b;
+			int c1 = nodes[a], c2 = nodes[b];
+																		
+			// create merge node at slot of c1, remove c2
+			final int mergeNode = tree.merge(c1, c2, m.cost);
+			nodes[a] = mergeNode;
+			nodes[b] = -1;
+			version[a]++;
+			version[b]++;
+			size--;
+			mc.merge(c1, c2, mergeNode, m.cost);
+			
+			// neighbours of the merge node, only costs of pairs with it are new
+			int[] cand;
+			if( adj != null ) {
+				adj.merge(a, b);
+				cand = adj.getNeighbours(a);
+			} else {
+				cand = new int[size - 1];
+				for( int nb = 0, k = 0; nb < nodes.length; nb++ )
+					if( nb != a && nodes[nb] >= 0 )
+						cand[k++] = nb;
 			}
+			int k = 0;
+			for( int nb : cand )
+				if( mc.isMergeable(mergeNode, nodes[nb]) )
+					cand[k++] = nb;
+			final int[] nbs = Arrays.copyOf(cand, k);
+			
+			// single costs are usually too cheap to be worth distributing unless there are many of them
+			int t = nbs.length >= PARALLEL_COSTS ? threads : 1;
+			for( List<Merge> l : ParallelUtils.invokeAll(t, ParallelUtils.getBounds(nbs.length, chunks), new ParallelUtils.RangeCallable<List<Merge>>() {
+				@Override
+				public List<Merge> call(int from, int to) {
+					List<Merge> l = new ArrayList<>();
+					for( int i = from; i < to; i++ )
+						l.add( new Merge(a, version[a], nbs[i], version[nbs[i]], mc.getCost(mergeNode, nodes[nbs[i]]) ) );
+					return l;
+				}
+			}))
+				pq.addAll(l);
 		}
-		return new ArrayList<>(curLayer.keySet());
+		
+		if( size > 1 )
+			log.debug("Cannot merge further: " + size);
+		int[] roots = new int[size];
+		for( int i = 0, k = 0; i < nodes.length; i++ )
+			if( nodes[i] >= 0 )
+				roots[k++] = nodes[i];
+		return roots;
 	}
 }
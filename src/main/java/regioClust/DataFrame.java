@@ -1,5 +1,6 @@
 package regioClust;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class DataFrame {
@@ -7,15 +8,49 @@ public class DataFrame {
 		Integer, Double, Long
 	};
 
-	public List<double[]> samples;
 	public List<String> names; // String would be better! Refactor!
 	public List<binding> bindings;
 	
+	public double[][] columns; // the values column-major, one array per column
+	private List<double[]> samples = null; // rows of all columns, built on first use
+	
 	public String[] getNames() {
 		return names.toArray(new String[]{});
 	}
 	
 	public int size() {
-		return samples.size();
+		return columns.length == 0 ? 0 : columns[0].length;
+	}
+	
+	// Rows of all columns, for code that matches samples by identity (distance matrices). Built once on first use and
+	// kept, so the values are then held twice; use getColumns() or getRows() where possible.
+	public synchronized List<double[]> getSamples() {
+		if( samples == null ) {
+			int[] all = new int[columns.length];
+			for( int i = 0; i < all.length; i++ )
+				all[i] = i;
+			samples = getRows(all);
+		}
+		return samples;
+	}
+	
+	// rows of columns idx, new arrays on every call
+	public List<double[]> getRows(int[] idx) {
+		List<double[]> r = new ArrayList<>(size());
+		for( int i = 0; i < size(); i++ ) {
+			double[] d = new double[idx.length];
+			for( int j = 0; j < idx.length; j++ )
+				d[j] = columns[idx[j]][i];
+			r.add(d);
+		}
+		return r;
+	}
+	
+	// columns idx, no copies, so that kernels only stream over the columns they need
+	public double[][] getColumns(int[] idx) {
+		double[][] r = new double[idx.length][];
+		for( int i = 0; i < idx.length; i++ )
+			r[i] = columns[idx[i]];
+		return r;
 	}
 }
@@ -2,37 +2,22 @@ package regioClust;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.geotools.data.DataStore;
 import org.geotools.data.FeatureSource;
-import org.geotools.data.FeatureStore;
-import org.geotools.data.FileDataStoreFactorySpi;
-import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.shapefile.ShapefileDataStore;
-import org.geotools.data.shapefile.ShapefileDataStoreFactory;
-import org.geotools.feature.FeatureIterator;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
-import org.opengis.feature.type.Name;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.MultiPoint;
-import com.vividsolutions.jts.geom.MultiPolygon;
-import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.geom.Polygon;
 
 public class DataUtils {
 
@@ -50,78 +35,26 @@ public class DataUtils {
 	public static void writeShape(List<double[]> samples, List<Geometry> geoms, String[] names, CoordinateReferenceSystem crs, String fn) {
 		if (names != null && samples.get(0).length != names.length)
 			throw new RuntimeException("column-length does not match names-length: " + samples.get(0).length + "!=" + names.length);
+		if (names == null) {
+			names = new String[samples.get(0).length];
+			for (int i = 0; i < names.length; i++)
+				names[i] = "data" + i;
+		}
 
+		ResultWriter w = null;
 		try {
-			SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
-			typeBuilder.setName("samples");
-			for (int i = 0; i < samples.get(0).length; i++) {
-				if (names != null) {
-					String n = names[i];
-					if (n.length() > 8) {
-						n = n.substring(0, 8);
-						//log.debug("Trunkating " + names[i] + " to " + n);
-					}
-					typeBuilder.add(n, Double.class);
-				} else {
-					typeBuilder.add("data" + i, Double.class);
-				}
-			}
-
-			if (crs != null)
-				typeBuilder.setCRS(crs);
-			else
-				log.warn("CRS not set!");
-
-			Geometry g = geoms.get(0);
-			if (g instanceof Polygon)
-				typeBuilder.add("the_geom", Polygon.class);
-			else if (g instanceof MultiPolygon)
-				typeBuilder.add("the_geom", MultiPolygon.class);
-			else if (g instanceof Point)
-				typeBuilder.add("the_geom", Point.class);
-			else if (g instanceof MultiPoint)
-				typeBuilder.add("the_geom", MultiPoint.class);
-			else
-				throw new RuntimeException("Unkown geometry type!");
-
-			SimpleFeatureType type = typeBuilder.buildFeatureType();
-			SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(type);
-
-			ListFeatureCollection fc = new ListFeatureCollection(type);
-			for (double[] d : samples) {
-				for (int i = 0; i < d.length; i++)
-					featureBuilder.add(d[i]);
-				featureBuilder.add(geoms.get(samples.indexOf(d)));
-				SimpleFeature sf = featureBuilder.buildFeature(null);
-				fc.add(sf);
-			}
-
-			// store shape file, no coordinate reference system
-			Map map = Collections.singletonMap("url", new File(fn).toURI().toURL());
-			FileDataStoreFactorySpi factory = new ShapefileDataStoreFactory();
-			DataStore myData = factory.createNewDataStore(map);
-			myData.createSchema(fc.getSchema());
-			Name name = myData.getNames().get(0);
-			FeatureStore<SimpleFeatureType, SimpleFeature> store = (FeatureStore<SimpleFeatureType, SimpleFeature>) myData.getFeatureSource(name);
-
-			store.addFeatures(fc);
-
-			/*Transaction transaction = new DefaultTransaction("create");
-			try {
-				store.addFeatures(fc);
-				transaction.commit();
-			} catch (Exception e) {
-				e.printStackTrace();
-				transaction.rollback();
-			} finally {
-				transaction.close();
-			}*/
-
-			myData.dispose();
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
+			w = new ResultWriter.ShapeWriter(fn, names, geoms.get(0), crs);
+			for (int i = 0; i < samples.size(); i++)
+				w.write(samples.get(i), geoms.get(i));
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			try {
+				if (w != null)
+					w.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 
@@ -130,15 +63,20 @@ public class DataUtils {
 	}
 
 	public static SpatialDataFrame readSpatialDataFrameFromShapefile(File file, int[] toDouble, boolean debug) {
+		return readSpatialDataFrameFromShapefile(file, toDouble, null, 1, debug);
+	}
 
+	// Numeric attributes (and those of toDouble, indices of attributes) are numbered in order, only those in columns 
+	// (null for all) are loaded, in that order. Records are decoded directly from the dbf and shp files, see ShapeReader. 
+	public static SpatialDataFrame readSpatialDataFrameFromShapefile(File file, int[] toDouble, int[] columns, int threads, boolean debug) {
+		long time = System.currentTimeMillis();
 		SpatialDataFrame sd = new SpatialDataFrame();
-		sd.samples = new ArrayList<double[]>();
-		sd.geoms = new ArrayList<Geometry>();
 		sd.names = new ArrayList<String>();
 		sd.bindings = new ArrayList<SpatialDataFrame.binding>();
 
 		DataStore dataStore = null;
 		try {
+			// schema and crs only
 			dataStore = new ShapefileDataStore((file).toURI().toURL());
 			FeatureSource<SimpleFeatureType, SimpleFeature> featureSource = dataStore.getFeatureSource(dataStore.getTypeNames()[0]);
 			sd.crs = featureSource.getSchema().getCoordinateReferenceSystem();
@@ -146,82 +84,71 @@ public class DataUtils {
 			Set<Integer> td = new HashSet<>();
 			for (int i : toDouble)
 				td.add(i);
-			Set<Integer> ignore = new HashSet<Integer>();
 
-			List<AttributeDescriptor> adl = featureSource.getFeatures().getSchema().getAttributeDescriptors(); // all
+			// numeric attributes, their field in the dbf and binding
+			List<AttributeDescriptor> adl = featureSource.getSchema().getAttributeDescriptors(); // all
+			List<Integer> attrs = new ArrayList<>(), fields = new ArrayList<>();
+			List<SpatialDataFrame.binding> bindings = new ArrayList<>();
+			int field = 0;
 			for (int i = 0; i < adl.size(); i++) {
 				AttributeDescriptor ad = adl.get(i);
-				String bin = ad.getType().getBinding().getName();
-								
-				if (ignore.contains(i) )
+				Class<?> c = ad.getType().getBinding();
+				if (Geometry.class.isAssignableFrom(c))
 					continue;
-
-				if (bin.equals("java.lang.Integer")) {
-					sd.names.add(ad.getLocalName());
-					sd.bindings.add(SpatialDataFrame.binding.Integer);
-				} else if (bin.equals("java.lang.Double") || td.contains(i) ) {
-					sd.names.add(ad.getLocalName());
-					sd.bindings.add(SpatialDataFrame.binding.Double);
-				} else if (bin.equals("java.lang.Long")) {
-					sd.names.add(ad.getLocalName());
-					sd.bindings.add(SpatialDataFrame.binding.Long);
-				} else {
-					ignore.add(i);
-					if (debug)
-						log.debug("Ignoring " + ad.getLocalName() + ", because " + bin);
+				String bin = c.getName();
+				
+				SpatialDataFrame.binding b = null;
+				if (bin.equals("java.lang.Integer"))
+					b = SpatialDataFrame.binding.Integer;
+				else if (bin.equals("java.lang.Double") || td.contains(i))
+					b = SpatialDataFrame.binding.Double;
+				else if (bin.equals("java.lang.Long"))
+					b = SpatialDataFrame.binding.Long;
+				
+				if (b != null) {
+					attrs.add(i);
+					fields.add(field);
+					bindings.add(b);
 				}
+				if (debug)
+					log.debug(i + ":" + ad.getLocalName() + (b == null ? ", IGN, because " + bin : "," + (attrs.size() - 1)));
+				field++;
 			}
-
-			if (debug) {
-				int idx = 0;
-				for (int i = 0; i < adl.size(); i++) {
-					if (ignore.contains(i))
-						log.debug(i + ":" + adl.get(i).getLocalName() + ", IGN");
-					else
-						log.debug(i + ":" + adl.get(i).getLocalName() + "," + (idx++));
-				}
+			
+			if (columns == null) {
+				columns = new int[attrs.size()];
+				for (int i = 0; i < columns.length; i++)
+					columns[i] = i;
 			}
-
-			FeatureIterator<SimpleFeature> it = featureSource.getFeatures().features();
-			try {
-				while (it.hasNext()) {
-					SimpleFeature feature = it.next();
-					double[] d = new double[adl.size() - ignore.size()];
-
-					int idx = 0;
-					for (int i = 0; i < adl.size(); i++) {
-
-						if (ignore.contains(i))
-							continue;
-
-						String name = adl.get(i).getLocalName();
-						Object o = feature.getAttribute(name);
-						if (td.contains(i) && o instanceof String)
-							d[idx++] = Double.parseDouble((String) o);
-						else if (o instanceof Double)
-							d[idx++] = ((Double) o).doubleValue();
-						else if (o instanceof Integer)
-							d[idx++] = ((Integer) o).intValue();
-						else if (o instanceof Long)
-							d[idx++] = ((Long) o).longValue();
-						else {
-							log.error("Unknown attribute type: " + name + ", " + o + ", " + i);
-							System.exit(1);
-						}
-					}
-
-					sd.samples.add(d);
-					sd.geoms.add((Geometry) feature.getDefaultGeometry());
-				}
-			} finally {
-				if (it != null) {
-					it.close();
-				}
+			int[] dbfFields = new int[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				if (columns[i] < 0 || columns[i] >= attrs.size())
+					throw new RuntimeException("No numeric attribute " + columns[i] + ", there are " + attrs.size());
+				dbfFields[i] = fields.get(columns[i]);
+				sd.names.add(adl.get(attrs.get(columns[i])).getLocalName());
+				sd.bindings.add(bindings.get(columns[i]));
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+			
+			File dbf = ShapeReader.getSibling(file, "dbf");
+			if (ShapeReader.readDbfHeader(dbf).fields.size() != field)
+				throw new RuntimeException("Fields of " + dbf + " do not match the schema");
+			double[][] values = ShapeReader.readDbf(dbf, dbfFields, threads);
+			sd.geoms = ShapeReader.readShp(file, threads);
+			int n = sd.geoms.size();
+			if (values.length > 0 && values[0].length != n)
+				throw new RuntimeException("Number of records in " + dbf + " does not match the number of shapes: " + values[0].length + "!=" + n);
+			
+			sd.columns = values; // decoded column-major already, rows only if needed, see DataFrame.getSamples()
+			
+			time = Math.max(1, System.currentTimeMillis() - time);
+			long bytes = file.length() + dbf.length();
+			log.info("Read " + n + " features with " + columns.length + " of " + attrs.size() + " numeric attributes in " + time + "ms, " 
+					+ (n * 1000L / time) + " features/s, " + (bytes / 1024 * 1000 / 1024 / time) + "MB/s");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		} finally {
-			dataStore.dispose();
+			if (dataStore != null)
+				dataStore.dispose();
 		}
 		return sd;
 	}
@@ -0,0 +1,172 @@
+package regioClust;
+
+import java.util.Arrays;
+
+// Binary merge tree over n leaves (row ids 0..n-1) stored in parallel arrays. Internal nodes get ids n, n+1, ... in
+// the order they are merged, so the id also gives the age of a node. For contents, leaves are ordered such that the
+// leaves of every node form a contiguous range of that order.
+public class Dendrogram {
+
+	private int n, merges = 0;
+	private int[] left, right, size; // of internal nodes, at id - n
+	private double[] cost;
+	private int[] parent; // -1 for roots
+
+	// leaf order and start of every node in it, roots, rebuilt after merges
+	private int[] order = null, start = null, roots = null;
+
+	public Dendrogram( int n ) {
+		this.n = n;
+		int m = Math.max(0, n - 1);
+		this.left = new int[m];
+		this.right = new int[m];
+		this.size = new int[m];
+		this.cost = new double[m];
+		this.parent = new int[n + m];
+		Arrays.fill(parent, -1);
+	}
+
+	public int getLeafCount() {
+		return n;
+	}
+
+	public int getNodeCount() {
+		return n + merges;
+	}
+
+	// max number of nodes, ids are always smaller
+	public int getCapacity() {
+		return parent.length;
+	}
+
+	public int[] getLeaves() {
+		int[] l = new int[n];
+		for( int i = 0; i < n; i++ )
+			l[i] = i;
+		return l;
+	}
+
+	public boolean isLeaf( int node ) {
+		return node < n;
+	}
+
+	public int getLeft( int node ) {
+		return left[node - n];
+	}
+
+	public int getRight( int node ) {
+		return right[node - n];
+	}
+
+	public int getParent( int node ) {
+		return parent[node];
+	}
+
+	public int getSize( int node ) {
+		return isLeaf(node) ? 1 : size[node - n];
+	}
+
+	public double getCost( int node ) {
+		return isLeaf(node) ? 0 : cost[node - n];
+	}
+
+	// 0 for leaves, number of merges up to and including the one that created node otherwise
+	public int getAge( int node ) {
+		return isLeaf(node) ? 0 : node - n + 1;
+	}
+
+	// @return id of the new node
+	public synchronized int merge( int a, int b, double c ) {
+		if( parent[a] >= 0 || parent[b] >= 0 )
+			throw new RuntimeException("Node already merged: " + a + ", " + b);
+		int m = n + merges;
+		left[merges] = a;
+		right[merges] = b;
+		size[merges] = getSize(a) + getSize(b);
+		cost[merges] = c;
+		parent[a] = m;
+		parent[b] = m;
+		merges++;
+		order = null;
+		return m;
+	}
+
+	private synchronized void updateOrder() {
+		if( order != null )
+			return;
+
+		int nr = 0;
+		for( int i = 0; i < n + merges; i++ )
+			if( parent[i] < 0 )
+				nr++;
+		roots = new int[nr];
+		start = new int[n + merges];
+		int pos = 0;
+		for( int i = 0, k = 0; i < n + merges; i++ ) {
+			if( parent[i] >= 0 )
+				continue;
+			roots[k++] = i;
+			start[i] = pos;
+			pos += getSize(i);
+		}
+
+		// parents have larger ids than their children
+		for( int m = n + merges - 1; m >= n; m-- ) {
+			start[getLeft(m)] = start[m];
+			start[getRight(m)] = start[m] + getSize(getLeft(m));
+		}
+
+		int[] o = new int[n];
+		for( int i = 0; i < n; i++ )
+			o[start[i]] = i;
+		order = o;
+	}
+
+	// leaves of all nodes, contents of node are getOrder()[getStart(node)] ... getOrder()[getStart(node)+getSize(node)-1]
+	public int[] getOrder() {
+		updateOrder();
+		return order;
+	}
+
+	public int getStart( int node ) {
+		updateOrder();
+		return start[node];
+	}
+
+	// row ids of the leaves of node
+	public int[] getContents( int node ) {
+		updateOrder();
+		return Arrays.copyOfRange(order, start[node], start[node] + getSize(node));
+	}
+
+	public int[] getRoots() {
+		updateOrder();
+		return roots.clone();
+	}
+
+	// the k clusters that existed before the last merges, O(k)
+	public int[] cutTree( int k ) {
+		if( k > n )
+			throw new RuntimeException("Too few observations for the desired number of clusters!");
+		updateOrder();
+		if( k <= roots.length )
+			return roots.clone();
+
+		// split the k-#roots youngest nodes, these all are internal nodes
+		int threshold = n + merges - (k - roots.length);
+		int[] r = new int[k];
+		int[] stack = new int[k];
+		int sp = 0, nr = 0;
+		for( int root : roots )
+			stack[sp++] = root;
+		while( sp > 0 ) {
+			int node = stack[--sp];
+			if( node >= threshold ) {
+				stack[sp++] = getLeft(node);
+				stack[sp++] = getRight(node);
+			} else
+				r[nr++] = node;
+		}
+		return r;
+	}
+}
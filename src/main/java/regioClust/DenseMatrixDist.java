@@ -0,0 +1,188 @@
+package regioClust;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+// Distances of n samples as packed upper triangle (i < j, row by row) of float32 or float64 values. Values are kept
+// in arrays on the heap, in direct buffers off the heap or in a memory-mapped file. File layout, little endian:
+//  header, 32 bytes: magic "RTRI", version, n, bytes per value (4 or 8), 0
+//  n(n-1)/2 values
+public class DenseMatrixDist extends MatrixDist {
+
+	public static final int MAGIC = 0x49525452; // "RTRI" read as little endian int
+	public static final int VERSION = 1;
+	private static final int HEADER = 32;
+	private static final int SEGMENT_BITS = 27; // values per segment, a single buffer is limited to 2GB
+
+	private int n, valueBytes;
+	private FloatBuffer[] floats;
+	private DoubleBuffer[] doubles;
+
+	private DenseMatrixDist( int n, int valueBytes ) {
+		this.n = n;
+		this.valueBytes = valueBytes;
+	}
+
+	// all distances 0
+	public DenseMatrixDist( int n, boolean float32, boolean offHeap ) {
+		this(n, float32 ? 4 : 8);
+		long size = getSize();
+		int segs = (int) ((size + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+		if( float32 )
+			floats = new FloatBuffer[segs];
+		else
+			doubles = new DoubleBuffer[segs];
+		for( int s = 0; s < segs; s++ ) {
+			int len = (int) Math.min(1L << SEGMENT_BITS, size - ((long) s << SEGMENT_BITS));
+			if( float32 )
+				floats[s] = offHeap ? ByteBuffer.allocateDirect(len * 4).order(ByteOrder.nativeOrder()).asFloatBuffer() : FloatBuffer.wrap(new float[len]);
+			else
+				doubles[s] = offHeap ? ByteBuffer.allocateDirect(len * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer() : DoubleBuffer.wrap(new double[len]);
+		}
+	}
+
+	@Override
+	public int getRowCount() {
+		return n;
+	}
+
+	// number of stored values
+	public long getSize() {
+		return (long) n * (n - 1) / 2;
+	}
+
+	private long index( int i, int j ) {
+		if( i > j ) {
+			int t = i;
+			i = j;
+			j = t;
+		}
+		return (long) i * (2L * n - i - 1) / 2 + (j - i - 1);
+	}
+
+	@Override
+	public double dist( int i, int j ) {
+		if( i == j )
+			return 0;
+		long k = index(i, j);
+		int s = (int) (k >>> SEGMENT_BITS), o = (int) (k & ((1 << SEGMENT_BITS) - 1));
+		return valueBytes == 4 ? floats[s].get(o) : doubles[s].get(o);
+	}
+
+	public void set( int i, int j, double d ) {
+		if( i == j )
+			return;
+		long k = index(i, j);
+		int s = (int) (k >>> SEGMENT_BITS), o = (int) (k & ((1 << SEGMENT_BITS) - 1));
+		if( valueBytes == 4 )
+			floats[s].put(o, (float) d);
+		else
+			doubles[s].put(o, d);
+	}
+
+	// from entries (from[k], to[k], values[k]), null if they do not cover all pairs
+	public static DenseMatrixDist create( int n, int[] from, int[] to, double[] values, int m, boolean float32, boolean offHeap ) {
+		long size = (long) n * (n - 1) / 2;
+		if( size > Integer.MAX_VALUE || m < size )
+			return null;
+		DenseMatrixDist d = new DenseMatrixDist(n, float32, offHeap);
+		BitSet set = new BitSet((int) size);
+		for( int k = 0; k < m; k++ ) {
+			if( from[k] == to[k] )
+				continue;
+			d.set(from[k], to[k], values[k]);
+			set.set((int) d.index(from[k], to[k]));
+		}
+		return set.cardinality() == size ? d : null;
+	}
+
+	public static boolean isDense( File fn ) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(fn));
+			return Integer.reverseBytes(in.readInt()) == MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				if( in != null )
+					in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public static DenseMatrixDist read( File fn ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fn, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer h = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			if( h.getInt(0) != MAGIC || h.getInt(4) != VERSION )
+				throw new IOException("Not a dense matrix file of version " + VERSION + ": " + fn);
+			int valueBytes = h.getInt(12);
+			if( valueBytes != 4 && valueBytes != 8 )
+				throw new IOException("Invalid value size: " + valueBytes);
+
+			DenseMatrixDist d = new DenseMatrixDist(h.getInt(8), valueBytes);
+			long size = d.getSize();
+			int segs = (int) ((size + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+			if( valueBytes == 4 )
+				d.floats = new FloatBuffer[segs];
+			else
+				d.doubles = new DoubleBuffer[segs];
+			for( int s = 0; s < segs; s++ ) {
+				long len = Math.min(1L << SEGMENT_BITS, size - ((long) s << SEGMENT_BITS));
+				ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, HEADER + ((long) s << SEGMENT_BITS) * valueBytes, len * valueBytes).order(ByteOrder.LITTLE_ENDIAN);
+				if( valueBytes == 4 )
+					d.floats[s] = b.asFloatBuffer();
+				else
+					d.doubles[s] = b.asDoubleBuffer();
+			}
+			return d;
+		} finally {
+			raf.close(); // mappings stay valid
+		}
+	}
+
+	public void write( File fn ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fn, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel fc = raf.getChannel();
+			ByteBuffer b = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(valueBytes).putLong(0).putLong(0);
+			int segs = valueBytes == 4 ? floats.length : doubles.length;
+			for( int s = 0; s < segs; s++ ) {
+				int len = valueBytes == 4 ? floats[s].limit() : doubles[s].limit();
+				for( int k = 0; k < len; k++ ) {
+					if( b.remaining() < valueBytes )
+						flush(fc, b);
+					if( valueBytes == 4 )
+						b.putFloat(floats[s].get(k));
+					else
+						b.putDouble(doubles[s].get(k));
+				}
+			}
+			flush(fc, b);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void flush( FileChannel fc, ByteBuffer b ) throws IOException {
+		b.flip();
+		while( b.hasRemaining() )
+			fc.write(b);
+		b.clear();
+	}
+}
@@ -21,6 +21,11 @@ public class EuclideanDist implements Dist<double[]> {
 			return dist(a, 0, b, 0, a.length);
 	}
 	
+	// columns, null for all
+	public int[] getIdx() {
+		return idx;
+	}
+	
 	// shortcut
 	public double dist(double[] a, double[] b, int[] idx ) {
 		return dist(a,0,b,0,idx);
@@ -35,17 +40,11 @@ public class EuclideanDist implements Dist<double[]> {
 	}
 	
 	public double dist(double[] a, int offsetA, double[] b, int offsetB, int[] idx ) {
-		double dist = 0;
-		for (int i : idx )
-			dist += (a[i + offsetA] - b[i + offsetB])*(a[i + offsetA] - b[i + offsetB]);
-		return Math.sqrt( dist );
+		return Math.sqrt( Kernels.squaredDistance(a, offsetA, b, offsetB, idx) );
 	}
 
 	public double dist(double[] a, int offsetA, double[] b, int offsetB, int length) {
-		double dist = 0;
-		for (int i = 0; i < length; i++)
-			dist += (a[i + offsetA] - b[i + offsetB])*(a[i + offsetA] - b[i + offsetB]);
-		return Math.sqrt( dist );
+		return Math.sqrt( Kernels.squaredDistance(a, offsetA, b, offsetB, length) );
 	}
 	
 	@Override 
@@ -1,23 +1,30 @@
 package regioClust;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.PriorityQueue;
-import java.util.Set;
 
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.algorithm.locate.SimplePointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
 
 public class GeoUtils {
 			
@@ -58,22 +65,97 @@ public class GeoUtils {
 	}
 	
 	public static Map<double[], List<double[]>> getKNNs(final List<double[]> samples, final Dist<double[]> gDist, int k, boolean includeIdentity) {
-		Map<double[], List<double[]>> r = new HashMap<double[], List<double[]>>();
-				
-		for (final double[] x : samples) {
-			PriorityQueue<double[]> pq = new PriorityQueue<>(samples.size(), new Comparator<double[]>() {
+		return getKNNs(samples, gDist, k, includeIdentity, 1);
+	}
+	
+	// Euclidean distances are answered by a KD-tree, others by one pass over all samples per query
+	public static Map<double[], List<double[]>> getKNNs(final List<double[]> samples, final Dist<double[]> gDist, final int k, final boolean includeIdentity, int threads) {
+		int[][] nb;
+		if( gDist instanceof EuclideanDist ) 
+			nb = new KDTree(samples, ((EuclideanDist)gDist).getIdx()).knn(k, includeIdentity, threads);
+		else {
+			nb = new int[samples.size()][];
+			final int[][] r = nb;
+			ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(samples.size(), threads * ParallelUtils.CHUNKS_PER_THREAD), new ParallelUtils.RangeCallable<Void>() {
 				@Override
-				public int compare(double[] o1, double[] o2) {
-					return Double.compare(gDist.dist(x, o1),gDist.dist(x, o2));
+				public Void call(int from, int to) {
+					double[] d = new double[samples.size()];
+					for( int i = from; i < to; i++ ) {
+						for( int j = 0; j < d.length; j++ )
+							d[j] = gDist.dist(samples.get(i), samples.get(j));
+						r[i] = nearest(d, i, k, includeIdentity);
+					}
+					return null;
 				}
 			});
-			pq.addAll(samples);
+		}
+		
+		Map<double[], List<double[]>> r = new HashMap<double[], List<double[]>>();
+		for( int i = 0; i < nb.length; i++ ) {
 			List<double[]> sub = new ArrayList<double[]>();
-			if( !includeIdentity )
-				pq.poll(); // drop first/identity
-			while( sub.size() < k )
-				sub.add(pq.poll());
-			r.put(x, sub);
+			for( int j : nb[i] )
+				sub.add(samples.get(j));
+			r.put(samples.get(i), sub);
+		}
+		return r;
+	}
+	
+	// k smallest of d, nearest first, ties by index; i itself first if includeIdentity, else skipped
+	private static int[] nearest(final double[] d, int i, int k, boolean includeIdentity) {
+		PriorityQueue<Integer> pq = new PriorityQueue<>(k + 1, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int c = Double.compare(d[o2], d[o1]);
+				return c != 0 ? c : Integer.compare(o2, o1);
+			}
+		});
+		int m = includeIdentity ? k - 1 : k;
+		for( int j = 0; j < d.length && m > 0; j++ ) {
+			if( j == i )
+				continue;
+			pq.add(j);
+			if( pq.size() > m )
+				pq.poll();
+		}
+		int[] r = new int[pq.size() + (includeIdentity ? 1 : 0)];
+		for( int j = r.length - 1; !pq.isEmpty(); j-- )
+			r[j] = pq.poll();
+		if( includeIdentity )
+			r[0] = i;
+		return r;
+	}
+	
+	// Symmetric kNN graph: i and j are neighbours if one of them is among the k nearest of the other. Replaces polygon
+	// contiguity for point data, idx are the columns of the coordinates.
+	public static int[][] getKNNContiguityMap(List<double[]> samples, int[] idx, int k, boolean includeIdentity, int threads) {
+		int n = samples.size();
+		int[][] nb = new KDTree(samples, idx).knn(k, false, threads);
+		int m = includeIdentity ? n : 0;
+		for( int[] l : nb )
+			m += 2 * l.length;
+		int[] from = new int[m], to = new int[m];
+		int c = 0;
+		if( includeIdentity )
+			for( ; c < n; c++ )
+				from[c] = to[c] = c;
+		for( int i = 0; i < n; i++ )
+			for( int j : nb[i] ) {
+				from[c] = i;
+				to[c++] = j;
+				from[c] = j;
+				to[c++] = i;
+			}
+		
+		// pairs that are among the nearest of each other are found twice
+		int[][] r = toNeighbourLists(n, from, to, m);
+		for( int i = 0; i < n; i++ ) {
+			int[] l = r[i];
+			Arrays.sort(l);
+			int u = 0;
+			for( int j = 0; j < l.length; j++ )
+				if( j == 0 || l[j] != l[j - 1] )
+					l[u++] = l[j];
+			r[i] = u == l.length ? l : Arrays.copyOf(l, u);
 		}
 		return r;
 	}
@@ -97,99 +179,464 @@ public class GeoUtils {
 	}
 
 	public static <T> Map<T, Map<T, Double>> readDistMatrixKeyValue(List<T> samples, File fn) throws NumberFormatException, IOException, FileNotFoundException {
+		KeyValueReader.Entries e = KeyValueReader.read(fn, 1);
+		if( e.values == null )
+			throw new IOException("No distances in " + fn);
 		Map<T, Map<T, Double>> distMatrix = new HashMap<T, Map<T, Double>>();
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(fn));
-			String line = br.readLine(); // ignore first line by reading but not using
-			while ((line = br.readLine()) != null) {
+		for( int k = 0; k < e.m; k++ ) {
+			T a = samples.get(e.from[k]);
+			T b = samples.get(e.to[k]);
+
+			if (!distMatrix.containsKey(a))
+				distMatrix.put(a, new HashMap<T, Double>());
+
+			distMatrix.get(a).put(b, e.values[k]);
+		}
+		return distMatrix;
+	}
 	
-				String[] s = line.split(",");
+	// Distances of samples from a dense or CSR matrix file, mapped into memory, or key-value CSV (may be gzipped). CSV
+	// with distances of all pairs gives a dense matrix, else a sparse one. offHeap: keep these outside of the heap
+	public static MatrixDist readDist(List<double[]> samples, File fn, int threads, boolean offHeap) throws IOException {
+		MatrixDist d;
+		if( DenseMatrixDist.isDense(fn) )
+			d = DenseMatrixDist.read(fn);
+		else if( CSRMatrix.isCSR(fn) )
+			d = new CSRDist(CSRMatrix.read(fn));
+		else {
+			KeyValueReader.Entries e = KeyValueReader.read(fn, threads);
+			if( e.values == null )
+				throw new IOException("No distances in " + fn);
+			d = DenseMatrixDist.create(samples.size(), e.from, e.to, e.values, e.m, false, offHeap);
+			if( d == null )
+				d = new CSRDist(CSRMatrix.create(samples.size(), e.from, e.to, e.values, e.m, offHeap));
+		}
+		d.setSamples(samples);
+		return d;
+	}
+		
+	// neighbour lists of row ids
+	public static int[][] getContiguityMap(List<Geometry> geoms, boolean rookAdjacency, boolean includeIdentity ) {
+		return getContiguityMap(geoms, rookAdjacency, includeIdentity, 1);
+	}
 	
-				T a = samples.get(Integer.parseInt(s[0]));
-				T b = samples.get(Integer.parseInt(s[1]));
+	// Candidate pairs are those with intersecting envelopes, found by an STR-tree. Predicates are evaluated once per
+	// pair on the prepared geometry of the first one, rows are distributed over threads. For rook, pairs with a common
+	// segment of exactly the same vertices are found by getContiguityMapFromBoundaries() first, only the remaining
+	// candidates are tested by sharesBoundary(), so boundaries need not have the same vertices
+	public static int[][] getContiguityMap(final List<Geometry> geoms, final boolean rookAdjacency, final boolean includeIdentity, int threads ) {
+		final STRtree index = new STRtree();
+		for( int i = 0; i < geoms.size(); i++ )
+			index.insert(geoms.get(i).getEnvelopeInternal(), i);
+		index.build(); // before concurrent queries
+		final int[][] shared = rookAdjacency ? getContiguityMapFromBoundaries(geoms, true, false, 0) : null;
+		
+		// pairs (i,j), i < j, per chunk of rows
+		List<int[][]> pairs = ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(geoms.size(), threads * ParallelUtils.CHUNKS_PER_THREAD), new ParallelUtils.RangeCallable<int[][]>() {
+			@Override
+			public int[][] call(int from, int to) {
+				int[] a = new int[1024], b = new int[1024];
+				int m = 0;
+				for( int i = from; i < to; i++ ) {
+					Geometry g = geoms.get(i);
+					PreparedGeometry pg = null;
+					for( Object o : index.query(g.getEnvelopeInternal()) ) {
+						int j = (Integer)o;
+						if( j <= i )
+							continue;
+						if( !rookAdjacency || Arrays.binarySearch(shared[i], j) < 0 ) {
+							if( pg == null )
+								pg = PreparedGeometryFactory.prepare(g);
+							Geometry h = geoms.get(j);
+							if( !pg.intersects(h) )
+								continue;
+							if( rookAdjacency && !sharesBoundary(g, h) ) // only touching
+								continue;
+						}
+						if( m == a.length ) {
+							a = Arrays.copyOf(a, m * 2);
+							b = Arrays.copyOf(b, m * 2);
+						}
+						a[m] = i;
+						b[m] = j;
+						m++;
+					}
+				}
+				return new int[][] { Arrays.copyOf(a, m), Arrays.copyOf(b, m) };
+			}
+		});
+		
+		int m = includeIdentity ? geoms.size() : 0;
+		for( int[][] p : pairs )
+			m += 2 * p[0].length;
+		int[] from = new int[m], to = new int[m];
+		int k = 0;
+		if( includeIdentity )
+			for( ; k < geoms.size(); k++ )
+				from[k] = to[k] = k;
+		for( int[][] p : pairs )
+			for( int i = 0; i < p[0].length; i++ ) {
+				from[k] = p[0][i];
+				to[k++] = p[1][i];
+				from[k] = p[1][i];
+				to[k++] = p[0][i];
+			}
+		
+		int[][] r = toNeighbourLists(geoms.size(), from, to, m);
+		for( int[] l : r )
+			Arrays.sort(l);
+		return r;
+	}
 	
-				if (!distMatrix.containsKey(a))
-					distMatrix.put(a, new HashMap<T, Double>());
+	// Whether the intersection of g and h is more than a single point: a common part of their boundaries of positive
+	// length, a proper crossing, two or more touching points or one ring inside the other. Segment pairs are tested
+	// within the common envelope only, no overlay is computed.
+	static boolean sharesBoundary( Geometry g, Geometry h ) {
+		Envelope eg = g.getEnvelopeInternal(), eh = h.getEnvelopeInternal();
+		Envelope env = new Envelope(Math.max(eg.getMinX(), eh.getMinX()), Math.min(eg.getMaxX(), eh.getMaxX()), Math.max(eg.getMinY(), eh.getMinY()), Math.min(eg.getMaxY(), eh.getMaxY()));
+		List<Coordinate[]> rg = new ArrayList<>(), rh = new ArrayList<>();
+		getRings(g, rg);
+		getRings(h, rh);
+		List<Coordinate> sg = getSegments(rg, env), sh = getSegments(rh, env);
+		
+		Coordinate touch = null;
+		for( int a = 0; a < sg.size(); a += 2 ) {
+			Coordinate p1 = sg.get(a), p2 = sg.get(a + 1);
+			for( int b = 0; b < sh.size(); b += 2 ) {
+				Coordinate q1 = sh.get(b), q2 = sh.get(b + 1), c;
+				int o1 = CGAlgorithms.orientationIndex(p1, p2, q1), o2 = CGAlgorithms.orientationIndex(p1, p2, q2);
+				if( o1 == 0 && o2 == 0 ) { // collinear, overlap of projections on the major axis of p
+					boolean x = Math.abs(p2.x - p1.x) >= Math.abs(p2.y - p1.y);
+					double lo = Math.max(Math.min(x ? p1.x : p1.y, x ? p2.x : p2.y), Math.min(x ? q1.x : q1.y, x ? q2.x : q2.y));
+					double hi = Math.min(Math.max(x ? p1.x : p1.y, x ? p2.x : p2.y), Math.max(x ? q1.x : q1.y, x ? q2.x : q2.y));
+					if( lo < hi )
+						return true;
+					if( lo > hi )
+						continue;
+					c = lo == (x ? p1.x : p1.y) ? p1 : p2; // an end point of both
+				} else {
+					int o3 = CGAlgorithms.orientationIndex(q1, q2, p1), o4 = CGAlgorithms.orientationIndex(q1, q2, p2);
+					if( o1 * o2 > 0 || o3 * o4 > 0 )
+						continue;
+					if( o1 != 0 && o2 != 0 && o3 != 0 && o4 != 0 )
+						return true;
+					c = o1 == 0 ? q1 : o2 == 0 ? q2 : o3 == 0 ? p1 : p2; // an endpoint on the other segment
+				}
+				if( touch == null )
+					touch = c;
+				else if( !touch.equals2D(c) )
+					return true;
+			}
+		}
+		
+		// boundaries meet in at most one point, so a ring is inside the other geometry if any other vertex is
+		return isInside(rg, touch, h) || isInside(rh, touch, g);
+	}
 	
-				distMatrix.get(a).put(b, Double.parseDouble(s[2]));
+	// consecutive pairs of the end points of all segments of positive length with an envelope intersecting env
+	private static List<Coordinate> getSegments( List<Coordinate[]> rings, Envelope env ) {
+		List<Coordinate> l = new ArrayList<>();
+		for( Coordinate[] ring : rings )
+			for( int k = 0; k + 1 < ring.length; k++ ) {
+				Coordinate p = ring[k], q = ring[k + 1];
+				if( p.equals2D(q) || Math.max(p.x, q.x) < env.getMinX() || Math.min(p.x, q.x) > env.getMaxX() || Math.max(p.y, q.y) < env.getMinY() || Math.min(p.y, q.y) > env.getMaxY() )
+					continue;
+				l.add(p);
+				l.add(q);
 			}
-		} finally {
-			try {
-				if( br != null )
-					br.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		return l;
+	}
+	
+	private static boolean isInside( List<Coordinate[]> rings, Coordinate touch, Geometry g ) {
+		for( Coordinate[] ring : rings )
+			for( Coordinate c : ring )
+				if( touch == null || !touch.equals2D(c) ) {
+					if( SimplePointInAreaLocator.locate(c, g) == Location.INTERIOR )
+						return true;
+					break;
+				}
+		return false;
+	}
+	
+	// Polygons are neighbours if they share a segment (rook) or a vertex (queen) of their rings. Vertices no more than
+	// tolerance apart in x and y are the same, also in chains of such vertices, so common boundaries must have the
+	// same vertices in all polygons up to the tolerance (exact if 0). One pass over all vertices, no overlay.
+	public static int[][] getContiguityMapFromBoundaries(List<Geometry> geoms, boolean rookAdjacency, boolean includeIdentity, double tolerance ) {
+		List<Coordinate[]> rings = new ArrayList<>();
+		int[] owner = new int[1024]; // geometry of each ring
+		for( int i = 0; i < geoms.size(); i++ ) {
+			int s = rings.size();
+			getRings(geoms.get(i), rings);
+			if( rings.size() > owner.length )
+				owner = Arrays.copyOf(owner, Math.max(owner.length * 2, rings.size()));
+			Arrays.fill(owner, s, rings.size(), i);
+		}
+		int[][] ids = getVertexIds(rings, tolerance);
+		
+		BoundaryTable bt = new BoundaryTable(rookAdjacency ? 2 : 1);
+		long[] key = new long[rookAdjacency ? 2 : 1];
+		for( int r = 0; r < rings.size(); r++ )
+			for( int k = 0; k < ids[r].length; k++ ) {
+				key[0] = ids[r][k];
+				if( rookAdjacency ) {
+					if( k == ids[r].length - 1 )
+						break;
+					int v = ids[r][k + 1];
+					if( v == key[0] )
+						continue;
+					key[1] = Math.max(v, key[0]); // same key for both directions
+					key[0] = Math.min(v, key[0]);
+				}
+				bt.add(key, owner[r]);
 			}
+		
+		// all pairs of geometries per vertex/segment
+		int m = includeIdentity ? geoms.size() : 0;
+		for( int e = 0; e < bt.size; e++ ) {
+			int c = 0;
+			for( int p = bt.head[e]; p >= 0; p = bt.next[p] )
+				c++;
+			m += c * (c - 1);
 		}
-		return distMatrix;
+		int[] from = new int[m], to = new int[m];
+		int k = 0;
+		if( includeIdentity )
+			for( ; k < geoms.size(); k++ )
+				from[k] = to[k] = k;
+		for( int e = 0; e < bt.size; e++ )
+			for( int p = bt.head[e]; p >= 0; p = bt.next[p] )
+				for( int q = bt.next[p]; q >= 0; q = bt.next[q] ) {
+					from[k] = bt.geom[p];
+					to[k++] = bt.geom[q];
+					from[k] = bt.geom[q];
+					to[k++] = bt.geom[p];
+				}
+		
+		// polygons usually share more than one vertex/segment
+		int[][] r = toNeighbourLists(geoms.size(), from, to, m);
+		for( int i = 0; i < r.length; i++ ) {
+			Arrays.sort(r[i]);
+			int u = 0;
+			for( int j = 0; j < r[i].length; j++ )
+				if( u == 0 || r[i][j] != r[i][u - 1] )
+					r[i][u++] = r[i][j];
+			if( u < r[i].length )
+				r[i] = Arrays.copyOf(r[i], u);
+		}
+		return r;
 	}
+	
+	// Ids of the vertices of all rings, the same for equal coordinates. With a tolerance > 0, vertices are hashed to grid
+	// cells of that size and compared with those of the 9 cells around them, so close vertices on both sides of a cell
+	// border are merged, too (single linkage by union-find).
+	private static int[][] getVertexIds( List<Coordinate[]> rings, double tolerance ) {
+		BoundaryTable bt = new BoundaryTable(2);
+		long[] key = new long[2];
+		int n = 0;
+		for( Coordinate[] ring : rings )
+			n += ring.length;
+		int[] parent = tolerance > 0 ? new int[n] : null;
+		Coordinate[] vertices = tolerance > 0 ? new Coordinate[n] : null;
 		
-	public static Map<double[], Set<double[]>> getContiguityMap(List<double[]> samples, List<Geometry> geoms, boolean rookAdjacency, boolean includeIdentity ) {
-		Map<double[], Set<double[]>> r = new HashMap<>();
-		for( int i = 0; i < samples.size(); i++ ) {
-			Geometry a = geoms.get(i);
-			Set<double[]> l = new HashSet<>();
-			for( int j = 0; j < samples.size(); j++ ) {
-				Geometry b = geoms.get(j);
-				if( !includeIdentity && a == b )
-					continue;				
-				if( !rookAdjacency ) { // queen
-					if( a.touches(b) || a.intersects(b) )
-							l.add( samples.get(j));
-				} else { // rook
-					if( a.intersection(b).getCoordinates().length > 1 ) // SLOW
-						l.add( samples.get(j));
+		int[][] ids = new int[rings.size()][];
+		int v = 0;
+		for( int r = 0; r < rings.size(); r++ ) {
+			Coordinate[] ring = rings.get(r);
+			ids[r] = new int[ring.length];
+			for( int k = 0; k < ring.length; k++ ) {
+				Coordinate c = ring[k];
+				if( tolerance <= 0 ) {
+					key[0] = Double.doubleToLongBits(c.x + 0.0); // no -0.0
+					key[1] = Double.doubleToLongBits(c.y + 0.0);
+					ids[r][k] = bt.put(key);
+					continue;
 				}
+				
+				long cx = (long)Math.floor(c.x / tolerance), cy = (long)Math.floor(c.y / tolerance);
+				parent[v] = v;
+				vertices[v] = c;
+				for( long dx = -1; dx <= 1; dx++ )
+					for( long dy = -1; dy <= 1; dy++ ) {
+						key[0] = cx + dx;
+						key[1] = cy + dy;
+						int e = bt.find(key);
+						if( e < 0 )
+							continue;
+						for( int p = bt.head[e]; p >= 0; p = bt.next[p] ) {
+							Coordinate d = vertices[bt.geom[p]];
+							if( Math.abs(d.x - c.x) <= tolerance && Math.abs(d.y - c.y) <= tolerance )
+								parent[root(parent, v)] = root(parent, bt.geom[p]);
+						}
+					}
+				key[0] = cx;
+				key[1] = cy;
+				bt.add(key, v);
+				ids[r][k] = v++;
 			}
-			r.put(samples.get(i), l);
 		}
-		return r;
+		
+		if( tolerance > 0 )
+			for( int[] l : ids )
+				for( int k = 0; k < l.length; k++ )
+					l[k] = root(parent, l[k]);
+		return ids;
 	}
-
-	public static <T> Map<T, Set<T>> readContiguityKeyValue(List<T> samples, File fn) {
-		Map<T, Set<T>> cm = new HashMap<T, Set<T>>();
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(fn));
-			String line = br.readLine(); // ignore first line by reading but not using
-			while ((line = br.readLine()) != null) {
 	
-				String[] s = line.split(",");
+	private static int root( int[] parent, int v ) {
+		while( parent[v] != v )
+			v = parent[v] = parent[parent[v]]; // path halving
+		return v;
+	}
 	
-				T a = samples.get(Integer.parseInt(s[0]));
-				T b = samples.get(Integer.parseInt(s[1]));
+	// coordinates of all rings/lines of g
+	static void getRings( Geometry g, List<Coordinate[]> rings ) {
+		if( g instanceof Polygon ) {
+			Polygon p = (Polygon)g;
+			rings.add(p.getExteriorRing().getCoordinates());
+			for( int i = 0; i < p.getNumInteriorRing(); i++ )
+				rings.add(p.getInteriorRingN(i).getCoordinates());
+		} else if( g instanceof GeometryCollection ) {
+			for( int i = 0; i < g.getNumGeometries(); i++ )
+				getRings(g.getGeometryN(i), rings);
+		} else
+			rings.add(g.getCoordinates());
+	}
 	
-				if (!cm.containsKey(a))
-					cm.put(a, new HashSet<T>());
-				
-				cm.get(a).add(b);
+	// Distinct keys of w longs in an open-addressed table (linear probing), each with a linked list of its members
+	// (geometries or vertices).
+	private static class BoundaryTable {
+		int w, size = 0, nrMembers = 0;
+		int[] slots = new int[1024]; // id of key + 1, 0 if empty
+		long[] keys;
+		int[] head; // last member of each key, -1 if none
+		int[] geom = new int[1024], next = new int[1024];
+		
+		BoundaryTable( int w ) {
+			this.w = w;
+			this.keys = new long[512 * w];
+			this.head = new int[512];
+		}
+		
+		private static int hash( long[] k, int off, int w ) {
+			long h = 0;
+			for( int i = 0; i < w; i++ ) {
+				h = (h ^ k[off + i]) * 0x9E3779B97F4A7C15L;
+				h ^= h >>> 29;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if( br != null )
-					br.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+			return (int)h;
+		}
+		
+		// slot of key, or the empty one to put it into
+		private int slot( long[] key ) {
+			int mask = slots.length - 1;
+			int i = hash(key, 0, w) & mask;
+			for( ; slots[i] != 0; i = (i + 1) & mask ) {
+				int c = slots[i] - 1, j = 0;
+				while( j < w && keys[c * w + j] == key[j] )
+					j++;
+				if( j == w )
+					break;
+			}
+			return i;
+		}
+		
+		// id of key, -1 if not in the table
+		int find( long[] key ) {
+			return slots[slot(key)] - 1;
+		}
+		
+		// id of key, added if new
+		int put( long[] key ) {
+			int i = slot(key);
+			if( slots[i] != 0 )
+				return slots[i] - 1;
+			if( size == head.length ) {
+				keys = Arrays.copyOf(keys, keys.length * 2);
+				head = Arrays.copyOf(head, head.length * 2);
+			}
+			int e = size++;
+			System.arraycopy(key, 0, keys, e * w, w);
+			head[e] = -1;
+			slots[i] = e + 1;
+			if( size * 2 > slots.length ) // keep load factor <= 0.5
+				rehash();
+			return e;
+		}
+		
+		void add( long[] key, int g ) {
+			int e = put(key);
+			if( head[e] >= 0 && geom[head[e]] == g ) // members are added in order, so a repeated one is at the head
+				return;
+			if( nrMembers == geom.length ) {
+				geom = Arrays.copyOf(geom, nrMembers * 2);
+				next = Arrays.copyOf(next, nrMembers * 2);
+			}
+			geom[nrMembers] = g;
+			next[nrMembers] = head[e];
+			head[e] = nrMembers++;
+		}
+		
+		private void rehash() {
+			slots = new int[slots.length * 2];
+			int mask = slots.length - 1;
+			for( int e = 0; e < size; e++ ) {
+				int i = hash(keys, e * w, w) & mask;
+				while( slots[i] != 0 )
+					i = (i + 1) & mask;
+				slots[i] = e + 1;
 			}
 		}
-		return cm;
 	}
 	
-	public static <T> void writeContiguityKeyValue(Map<T, Set<T>> dMap, List<T> samples, File fn) {
-		Map<T,Integer> idxMap = new HashMap<T,Integer>();
-		for( int i = 0; i < samples.size(); i++ )
-			idxMap.put(samples.get(i), i);
+	// neighbour lists of n rows from pairs (from[i],to[i]), i < m
+	public static int[][] toNeighbourLists(int n, int[] from, int[] to, int m) {
+		int[] deg = new int[n];
+		for( int i = 0; i < m; i++ )
+			deg[from[i]]++;
+		int[][] r = new int[n][];
+		for( int i = 0; i < n; i++ )
+			r[i] = new int[deg[i]];
+		Arrays.fill(deg, 0);
+		for( int i = 0; i < m; i++ )
+			r[from[i]][deg[from[i]]++] = to[i];
+		return r;
+	}
+
+	// contiguity from a CSR matrix file or key-value CSV (may be gzipped)
+	public static int[][] readContiguity(int n, File fn, int threads) {
+		try {
+			if( !CSRMatrix.isCSR(fn) )
+				return readContiguityKeyValue(n, fn, threads);
+			CSRMatrix m = CSRMatrix.read(fn);
+			if( m.getRowCount() != n )
+				throw new RuntimeException("Contiguity matrix has " + m.getRowCount() + " rows, expected " + n);
+			return m.toNeighbourLists();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public static int[][] readContiguityKeyValue(int n, File fn) {
+		try {
+			return readContiguityKeyValue(n, fn, 1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return toNeighbourLists(n, new int[0], new int[0], 0);
+		}
+	}
+	
+	public static int[][] readContiguityKeyValue(int n, File fn, int threads) throws IOException {
+		KeyValueReader.Entries e = KeyValueReader.read(fn, threads);
+		return toNeighbourLists(n, e.from, e.to, e.m);
+	}
+	
+	public static void writeContiguityKeyValue(int[][] cm, File fn) {
 		try {
 			FileWriter fw = new FileWriter(fn);
 			fw.write("id1,id2\n");
-			for (Entry<T, Set<T>> e1 : dMap.entrySet()) {
-				int a = idxMap.get(e1.getKey());
-				for (T e2 : e1.getValue())
-					fw.write(a + "," + idxMap.get(e2) + "\n");
-			}
+			for( int a = 0; a < cm.length; a++ )
+				for (int b : cm[a])
+					fw.write(a + "," + b + "\n");
 			fw.close();
 		} catch (IOException e) {
 			e.printStackTrace();
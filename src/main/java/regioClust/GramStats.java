@@ -0,0 +1,73 @@
+package regioClust;
+
+import java.util.List;
+
+// sufficient statistics of a least squares fit, X'X, X'y, y'y and n, X with intercept as last column like LinearModel.getX()
+public class GramStats {
+	public int n = 0;
+	public double[][] xtx;
+	public double[] xty;
+	public double yty = 0;
+
+	public GramStats( int p ) {
+		this.xtx = new double[p][p];
+		this.xty = new double[p];
+	}
+
+	public GramStats( List<double[]> samples, int[] rows, int[] fa, int ta ) {
+		this(fa.length + 1);
+		double[] x = new double[fa.length + 1];
+		x[fa.length] = 1.0; // intercept
+		for( int r : rows ) {
+			double[] d = samples.get(r);
+			for( int i = 0; i < fa.length; i++ )
+				x[i] = d[fa[i]];
+			add(x, d[ta]);
+		}
+	}
+
+	// x: columns of the independent variables and a column of ones last, y: dependent variable, by row
+	public GramStats( double[][] x, double[] y, int[] rows ) {
+		this(x.length);
+		Kernels.gram(x, y, rows, xtx, xty);
+		yty = Kernels.dot(y, y, rows);
+		n = rows.length;
+	}
+
+	public void add( double[] x, double y ) {
+		Kernels.gramUpdate(xtx, xty, x, y);
+		yty += y * y;
+		n++;
+	}
+
+	// statistics of the union of two disjoint sets of samples
+	public GramStats merge( GramStats o ) {
+		GramStats g = new GramStats(xty.length);
+		for( int i = 0; i < xty.length; i++ )
+			Kernels.add(xtx[i], o.xtx[i], g.xtx[i]);
+		Kernels.add(xty, o.xty, g.xty);
+		g.yty = yty + o.yty;
+		g.n = n + o.n;
+		return g;
+	}
+
+	public double[] getBeta() {
+		double[] beta = new double[xty.length];
+		LeastSquares.get(xty.length).solve(xtx, xty, beta);
+		return beta;
+	}
+
+	// residual sum of squares of the fit, y'y - beta'X'y at the solution of the normal equations
+	public double getRSS() {
+		return LeastSquares.get(xty.length).getRSS(xtx, xty, yty);
+	}
+
+	// RSS of the union with o, as merge(o).getRSS() but summed in the workspace of the thread
+	public double getRSS( GramStats o ) {
+		LeastSquares ls = LeastSquares.get(xty.length);
+		for( int i = 0; i < xty.length; i++ )
+			Kernels.add(xtx[i], o.xtx[i], ls.xtx[i]);
+		Kernels.add(xty, o.xty, ls.xty);
+		return ls.getRSS(ls.xtx, ls.xty, yty + o.yty);
+	}
+}
@@ -0,0 +1,243 @@
+package regioClust;
+
+import java.util.List;
+
+// KD-tree over some columns of samples, for Euclidean k-nearest-neighbour queries. The tree is implicit: points are
+// kept in one flat array in tree order, a node covers a range of it and splits at its middle position along the
+// dimension of largest spread. Read-only once built, so queries can run concurrently.
+public class KDTree {
+
+	private static final int LEAF = 8; // max. points of a leaf
+
+	private final int n, d;
+	private final double[] pts; // coordinates in tree order, d per point
+	private final int[] rows; // row of the point at each position
+	private final byte[] split; // split dimension of the node whose middle is at that position
+
+	// idx: columns of the coordinates, null for all
+	public KDTree( List<double[]> samples, int[] idx ) {
+		this.n = samples.size();
+		if( idx == null ) {
+			idx = new int[n == 0 ? 0 : samples.get(0).length];
+			for( int i = 0; i < idx.length; i++ )
+				idx[i] = i;
+		}
+		if( idx.length > Byte.MAX_VALUE )
+			throw new RuntimeException("Too many dimensions: " + idx.length);
+		this.d = idx.length;
+		this.pts = new double[n * d];
+		this.rows = new int[n];
+		this.split = new byte[n];
+		for( int i = 0; i < n; i++ ) {
+			double[] s = samples.get(i);
+			for( int j = 0; j < d; j++ )
+				pts[i * d + j] = s[idx[j]];
+			rows[i] = i;
+		}
+		build(0, n);
+	}
+
+	public int size() {
+		return n;
+	}
+
+	private void build( int lo, int hi ) {
+		if( hi - lo <= LEAF )
+			return;
+		int dim = 0;
+		double spread = -1;
+		for( int j = 0; j < d; j++ ) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			for( int i = lo; i < hi; i++ ) {
+				min = Math.min(min, pts[i * d + j]);
+				max = Math.max(max, pts[i * d + j]);
+			}
+			if( max - min > spread ) {
+				spread = max - min;
+				dim = j;
+			}
+		}
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, dim);
+		split[mid] = (byte) dim;
+		build(lo, mid);
+		build(mid + 1, hi);
+	}
+
+	// partial quicksort of [lo,hi] along dim, until the point at position k is in place
+	private void select( int lo, int hi, int k, int dim ) {
+		while( hi > lo ) {
+			double pivot = pts[((lo + hi) >>> 1) * d + dim];
+			int i = lo, j = hi;
+			while( i <= j ) {
+				while( pts[i * d + dim] < pivot )
+					i++;
+				while( pts[j * d + dim] > pivot )
+					j--;
+				if( i <= j )
+					swap(i++, j--);
+			}
+			if( k <= j )
+				hi = j;
+			else if( k >= i )
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void swap( int a, int b ) {
+		for( int j = 0; j < d; j++ ) {
+			double t = pts[a * d + j];
+			pts[a * d + j] = pts[b * d + j];
+			pts[b * d + j] = t;
+		}
+		int t = rows[a];
+		rows[a] = rows[b];
+		rows[b] = t;
+	}
+
+	// rows of the k nearest points to q (coordinates as in the tree), nearest first, ties by row. exclude: row to skip, -1 for none
+	public int[] knn( double[] q, int k, int exclude ) {
+		k = Math.min(k, exclude >= 0 ? n - 1 : n);
+		if( k <= 0 )
+			return new int[0];
+		Heap h = new Heap(k);
+		search(0, n, q, exclude, h);
+		return h.toSortedRows();
+	}
+
+	// buffer of nearest(), for repeated queries by one thread
+	public static class Buffer {
+		private final Heap h = new Heap(1);
+	}
+
+	// row of the nearest point to q, ties by row, -1 if there is none. Unlike knn(), nothing is allocated per query
+	public int nearest( double[] q, Buffer b ) {
+		b.h.size = 0;
+		search(0, n, q, -1, b.h);
+		return b.h.size == 0 ? -1 : b.h.row[0];
+	}
+
+	// k nearest neighbours of all rows, excluding the row itself unless includeIdentity
+	public int[][] knn( final int k, final boolean includeIdentity, int threads ) {
+		final int[][] r = new int[n][];
+		// in tree order, so that consecutive queries of a chunk visit the same nodes
+		ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(n, threads * ParallelUtils.CHUNKS_PER_THREAD), new ParallelUtils.RangeCallable<Void>() {
+			@Override
+			public Void call( int from, int to ) {
+				double[] q = new double[d];
+				for( int p = from; p < to; p++ ) {
+					System.arraycopy(pts, p * d, q, 0, d);
+					int row = rows[p];
+					if( includeIdentity ) {
+						int[] nb = knn(q, k - 1, row);
+						r[row] = new int[nb.length + 1];
+						r[row][0] = row;
+						System.arraycopy(nb, 0, r[row], 1, nb.length);
+					} else
+						r[row] = knn(q, k, row);
+				}
+				return null;
+			}
+		});
+		return r;
+	}
+
+	private void search( int lo, int hi, double[] q, int exclude, Heap h ) {
+		if( hi - lo <= LEAF ) {
+			for( int i = lo; i < hi; i++ )
+				if( rows[i] != exclude )
+					h.offer(dist2(q, i), rows[i]);
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		int dim = split[mid];
+		double diff = q[dim] - pts[mid * d + dim];
+		if( rows[mid] != exclude )
+			h.offer(dist2(q, mid), rows[mid]);
+		// nearer side first, the other one only if the splitting plane is within the current k-th distance
+		if( diff < 0 ) {
+			search(lo, mid, q, exclude, h);
+			if( diff * diff <= h.bound() )
+				search(mid + 1, hi, q, exclude, h);
+		} else {
+			search(mid + 1, hi, q, exclude, h);
+			if( diff * diff <= h.bound() )
+				search(lo, mid, q, exclude, h);
+		}
+	}
+
+	private double dist2( double[] q, int p ) {
+		double s = 0;
+		for( int j = 0, o = p * d; j < d; j++, o++ )
+			s += (q[j] - pts[o]) * (q[j] - pts[o]);
+		return s;
+	}
+
+	// bounded max-heap of squared distances and rows, the root is the current k-th nearest
+	private static class Heap {
+		final double[] dist;
+		final int[] row;
+		int size = 0;
+
+		Heap( int k ) {
+			dist = new double[k];
+			row = new int[k];
+		}
+
+		double bound() {
+			return size < dist.length ? Double.POSITIVE_INFINITY : dist[0];
+		}
+
+		// a after b
+		boolean greater( double da, int ra, double db, int rb ) {
+			return da > db || (da == db && ra > rb);
+		}
+
+		void offer( double dd, int r ) {
+			if( size < dist.length ) {
+				int i = size++;
+				while( i > 0 && greater(dd, r, dist[(i - 1) >>> 1], row[(i - 1) >>> 1]) ) {
+					int p = (i - 1) >>> 1;
+					dist[i] = dist[p];
+					row[i] = row[p];
+					i = p;
+				}
+				dist[i] = dd;
+				row[i] = r;
+			} else if( greater(dist[0], row[0], dd, r) )
+				siftDown(dd, r);
+		}
+
+		// replaces the root
+		void siftDown( double dd, int r ) {
+			int i = 0;
+			while( true ) {
+				int c = 2 * i + 1;
+				if( c >= size )
+					break;
+				if( c + 1 < size && greater(dist[c + 1], row[c + 1], dist[c], row[c]) )
+					c++;
+				if( !greater(dist[c], row[c], dd, r) )
+					break;
+				dist[i] = dist[c];
+				row[i] = row[c];
+				i = c;
+			}
+			dist[i] = dd;
+			row[i] = r;
+		}
+
+		// empties the heap, farthest is popped first
+		int[] toSortedRows() {
+			int[] r = new int[size];
+			while( size > 0 ) {
+				r[size - 1] = row[0];
+				size--;
+				siftDown(dist[size], row[size]);
+			}
+			return r;
+		}
+	}
+}
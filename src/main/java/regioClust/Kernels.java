@@ -0,0 +1,134 @@
+package regioClust;
+
+// Inner loops of distances, means and Gram matrices in one place. The gathered and contiguous reductions and axpy go
+// through IMPL: VectorKernels (Vector API, in META-INF/versions/17 of the jar) if the JVM runs Java 17+ with
+// --add-modules jdk.incubator.vector and regioClust.vector is not false, else the plain loops of Scalar. Scalar
+// keeps the order of summation of the loops it replaces, so results do not change; vectorized sums differ in the
+// last bits.
+public class Kernels {
+
+	public interface Impl {
+		// sum of (a[oa + i] - b[ob + i])^2 over i in idx
+		double squaredDistance( double[] a, int oa, double[] b, int ob, int[] idx );
+
+		// sum of (a[oa + i] - b[ob + i])^2 over i < length
+		double squaredDistance( double[] a, int oa, double[] b, int ob, int length );
+
+		// sum of x[r] over r in rows
+		double sum( double[] x, int[] rows );
+
+		// sum of x[r] * y[r] over r in rows
+		double dot( double[] x, double[] y, int[] rows );
+
+		// y += alpha * x
+		void axpy( double alpha, double[] x, double[] y );
+	}
+
+	public static class Scalar implements Impl {
+		@Override
+		public double squaredDistance( double[] a, int oa, double[] b, int ob, int[] idx ) {
+			double s = 0;
+			for( int i : idx ) {
+				double d = a[i + oa] - b[i + ob];
+				s += d * d;
+			}
+			return s;
+		}
+
+		@Override
+		public double squaredDistance( double[] a, int oa, double[] b, int ob, int length ) {
+			double s = 0;
+			for( int i = 0; i < length; i++ ) {
+				double d = a[i + oa] - b[i + ob];
+				s += d * d;
+			}
+			return s;
+		}
+
+		@Override
+		public double sum( double[] x, int[] rows ) {
+			double s = 0;
+			for( int r : rows )
+				s += x[r];
+			return s;
+		}
+
+		@Override
+		public double dot( double[] x, double[] y, int[] rows ) {
+			double s = 0;
+			for( int r : rows )
+				s += x[r] * y[r];
+			return s;
+		}
+
+		@Override
+		public void axpy( double alpha, double[] x, double[] y ) {
+			for( int i = 0; i < x.length; i++ )
+				y[i] += alpha * x[i];
+		}
+	}
+
+	public static final Impl IMPL = load();
+
+	private static Impl load() {
+		if( !"false".equals(System.getProperty("regioClust.vector")) )
+			try {
+				return (Impl) Class.forName("regioClust.VectorKernels").newInstance();
+			} catch (Throwable e) { // Java 8-16 or module not added
+			}
+		return new Scalar();
+	}
+
+	public static double squaredDistance( double[] a, int oa, double[] b, int ob, int[] idx ) {
+		return IMPL.squaredDistance(a, oa, b, ob, idx);
+	}
+
+	public static double squaredDistance( double[] a, int oa, double[] b, int ob, int length ) {
+		return IMPL.squaredDistance(a, oa, b, ob, length);
+	}
+
+	// sum of (mean[i] - cols[i][r])^2 over all columns, for row r of column-major data
+	public static double squaredDistance( double[] mean, double[][] cols, int r ) {
+		double s = 0;
+		for( int i = 0; i < mean.length; i++ ) {
+			double d = mean[i] - cols[i][r];
+			s += d * d;
+		}
+		return s;
+	}
+
+	public static double sum( double[] x, int[] rows ) {
+		return IMPL.sum(x, rows);
+	}
+
+	public static double dot( double[] x, double[] y, int[] rows ) {
+		return IMPL.dot(x, y, rows);
+	}
+
+	public static void axpy( double alpha, double[] x, double[] y ) {
+		IMPL.axpy(alpha, x, y);
+	}
+
+	// out = a + b
+	public static void add( double[] a, double[] b, double[] out ) {
+		for( int i = 0; i < out.length; i++ )
+			out[i] = a[i] + b[i];
+	}
+
+	// xtx += x x', xty += y x: rank-1 update of a Gram matrix by one row x
+	public static void gramUpdate( double[][] xtx, double[] xty, double[] x, double y ) {
+		for( int i = 0; i < x.length; i++ ) {
+			axpy(x[i], x, xtx[i]);
+			xty[i] += x[i] * y;
+		}
+	}
+
+	// xtx[i][j] = sum of x[i][r] * x[j][r] and xty[i] = sum of x[i][r] * y[r] over r in rows, x column-major
+	public static void gram( double[][] x, double[] y, int[] rows, double[][] xtx, double[] xty ) {
+		for( int i = 0; i < x.length; i++ ) {
+			for( int j = 0; j <= i; j++ )
+				xtx[i][j] = xtx[j][i] = dot(x[i], x[j], rows);
+			xty[i] = dot(x[i], y, rows);
+		}
+	}
+}
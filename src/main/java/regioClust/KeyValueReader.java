@@ -0,0 +1,292 @@
+package regioClust;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+// Reads key-value CSV files (id1,id2[,value] per line, first line is a header) into primitive arrays. The input is
+// read in blocks cut at line ends, blocks are parsed in parallel while the next ones are read. Gzipped files are
+// decompressed on the fly.
+public class KeyValueReader {
+
+	private static Logger log = Logger.getLogger(KeyValueReader.class);
+
+	private static final int BLOCK = 1 << 22;
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for( int i = 1; i < POW10.length; i++ )
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	public static class Entries {
+		public int m = 0;
+		public int[] from, to;
+		public double[] values; // null if there is no third column
+
+		Entries( int capacity, boolean withValues ) {
+			from = new int[capacity];
+			to = new int[capacity];
+			values = withValues ? new double[capacity] : null;
+		}
+
+		void add( int a, int b, double v ) {
+			if( m == from.length ) {
+				from = Arrays.copyOf(from, m * 2);
+				to = Arrays.copyOf(to, m * 2);
+				if( values != null )
+					values = Arrays.copyOf(values, m * 2);
+			}
+			from[m] = a;
+			to[m] = b;
+			if( values != null )
+				values[m] = v;
+			m++;
+		}
+
+		// largest id + 1
+		public int getRowCount() {
+			int max = -1;
+			for( int k = 0; k < m; k++ )
+				max = Math.max(max, Math.max(from[k], to[k]));
+			return max + 1;
+		}
+	}
+
+	public static boolean isGzip( File fn ) throws IOException {
+		InputStream in = new FileInputStream(fn);
+		try {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.close();
+		}
+	}
+
+	public static Entries read( File fn, int threads ) throws IOException {
+		long time = System.currentTimeMillis();
+		InputStream in = new FileInputStream(fn);
+		if( isGzip(fn) )
+			in = new GZIPInputStream(in, 1 << 16);
+
+		ArrayDeque<Future<Entries>> pending = new ArrayDeque<>();
+		List<Entries> parts = new ArrayList<>();
+		try {
+			byte[] buf = new byte[BLOCK];
+			int len = 0, start = -1; // start < 0 while still in the header
+			boolean eof = false;
+			while( true ) {
+				int r = eof ? -1 : in.read(buf, len, buf.length - len);
+				if( r > 0 ) {
+					len += r;
+					if( len < buf.length )
+						continue;
+				} else
+					eof = true;
+
+				if( start < 0 ) { // skip header
+					int nl = indexOf(buf, 0, len, (byte) '\n');
+					if( nl >= 0 )
+						start = nl + 1;
+					else if( eof )
+						start = len;
+					else {
+						buf = Arrays.copyOf(buf, buf.length * 2); // header longer than a block
+						continue;
+					}
+				}
+
+				// parse up to the last complete line, keep the rest for the next block
+				int end = eof ? len : lastIndexOf(buf, start, len, (byte) '\n') + 1;
+				if( end <= start && !eof ) {
+					if( start == 0 )
+						buf = Arrays.copyOf(buf, buf.length * 2); // line longer than a block
+					System.arraycopy(buf, start, buf, 0, len - start);
+					len -= start;
+					start = 0;
+					continue;
+				}
+				if( end > start ) {
+					final byte[] block = Arrays.copyOfRange(buf, start, end);
+					if( threads <= 1 )
+						parts.add(parse(block, 0, block.length));
+					else {
+						pending.add(ParallelUtils.getPool(threads).submit(new Callable<Entries>() {
+							@Override
+							public Entries call() throws Exception {
+								return parse(block, 0, block.length);
+							}
+						}));
+						while( pending.size() > 2 * threads ) // bounds memory of blocks in flight
+							parts.add(pending.poll().get());
+					}
+				}
+				if( eof )
+					break;
+
+				System.arraycopy(buf, end, buf, 0, len - end);
+				len -= end;
+				start = 0;
+			}
+			while( !pending.isEmpty() )
+				parts.add(pending.poll().get());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			in.close();
+		}
+
+		// concatenate in order of blocks
+		int m = 0;
+		boolean withValues = false;
+		for( Entries e : parts ) {
+			m += e.m;
+			withValues |= e.m > 0 && e.values != null;
+		}
+		Entries r = new Entries(m, withValues);
+		for( Entries e : parts ) {
+			if( e.m == 0 )
+				continue;
+			if( withValues && e.values == null )
+				throw new RuntimeException("Missing values in " + fn);
+			System.arraycopy(e.from, 0, r.from, r.m, e.m);
+			System.arraycopy(e.to, 0, r.to, r.m, e.m);
+			if( withValues )
+				System.arraycopy(e.values, 0, r.values, r.m, e.m);
+			r.m += e.m;
+		}
+		log.debug("Read " + m + " entries from " + fn + " in " + (System.currentTimeMillis() - time) + "ms");
+		return r;
+	}
+
+	private static int indexOf( byte[] b, int from, int to, byte c ) {
+		for( int i = from; i < to; i++ )
+			if( b[i] == c )
+				return i;
+		return -1;
+	}
+
+	private static int lastIndexOf( byte[] b, int from, int to, byte c ) {
+		for( int i = to - 1; i >= from; i-- )
+			if( b[i] == c )
+				return i;
+		return -1;
+	}
+
+	// lines of b[from,to)
+	static Entries parse( byte[] b, int from, int to ) {
+		Entries r = null;
+		int[] fields = new int[8]; // start and end of up to 3 fields, and one more to detect too many
+		int i = from;
+		while( i < to ) {
+			int eol = indexOf(b, i, to, (byte) '\n');
+			if( eol < 0 )
+				eol = to;
+			int e = eol;
+			if( e > i && b[e - 1] == '\r' )
+				e--;
+
+			int nf = 0, s = i;
+			for( int j = i; j <= e && nf < 4; j++ )
+				if( j == e || b[j] == ',' ) {
+					fields[2 * nf] = s;
+					fields[2 * nf + 1] = j;
+					nf++;
+					s = j + 1;
+				}
+			if( e > i ) { // skip empty lines
+				if( nf < 2 || nf > 3 )
+					throw new RuntimeException("Invalid line: " + new String(b, i, e - i, StandardCharsets.US_ASCII));
+				if( r == null )
+					r = new Entries(Math.max(16, (to - from) / 16), nf == 3);
+				else if( (r.values != null) != (nf == 3) )
+					throw new RuntimeException("Inconsistent number of columns: " + new String(b, i, e - i, StandardCharsets.US_ASCII));
+				r.add(parseInt(b, fields[0], fields[1]), parseInt(b, fields[2], fields[3]), nf == 3 ? parseDouble(b, fields[4], fields[5]) : 0);
+			}
+			i = eol + 1;
+		}
+		return r == null ? new Entries(0, false) : r;
+	}
+
+	static int parseInt( byte[] b, int s, int e ) {
+		while( s < e && b[s] == ' ' )
+			s++;
+		while( e > s && b[e - 1] == ' ' )
+			e--;
+		int i = s;
+		boolean neg = i < e && b[i] == '-';
+		if( neg || (i < e && b[i] == '+') )
+			i++;
+		long v = 0;
+		if( i == e || e - i > 10 )
+			v = -1;
+		for( ; i < e && v >= 0; i++ ) {
+			int d = b[i] - '0';
+			v = d < 0 || d > 9 ? -1 : v * 10 + d;
+		}
+		if( v < 0 || v > Integer.MAX_VALUE )
+			return Integer.parseInt(new String(b, s, e - s, StandardCharsets.US_ASCII)); // throws if invalid
+		return (int) (neg ? -v : v);
+	}
+
+	// Exact for up to 15 significant digits and a decimal exponent within [-22,22], where the result is the correctly
+	// rounded product or quotient of two exactly represented doubles. Everything else goes to Double.parseDouble().
+	static double parseDouble( byte[] b, int s, int e ) {
+		while( s < e && b[s] == ' ' )
+			s++;
+		while( e > s && b[e - 1] == ' ' )
+			e--;
+		int i = s;
+		boolean neg = i < e && b[i] == '-';
+		if( neg || (i < e && b[i] == '+') )
+			i++;
+
+		long mant = 0;
+		int sig = 0, exp10 = 0, digits = 0;
+		for( ; i < e && b[i] >= '0' && b[i] <= '9'; i++, digits++ )
+			if( mant > 0 || b[i] != '0' ) {
+				mant = mant * 10 + (b[i] - '0');
+				sig++;
+			}
+		if( i < e && b[i] == '.' )
+			for( i++; i < e && b[i] >= '0' && b[i] <= '9'; i++, digits++ ) {
+				if( mant > 0 || b[i] != '0' ) {
+					mant = mant * 10 + (b[i] - '0');
+					sig++;
+				}
+				exp10--;
+				if( sig > 15 )
+					break;
+			}
+		if( i < e && (b[i] == 'e' || b[i] == 'E') && digits > 0 ) {
+			i++;
+			boolean eneg = i < e && b[i] == '-';
+			if( eneg || (i < e && b[i] == '+') )
+				i++;
+			int x = 0, xd = 0;
+			for( ; i < e && b[i] >= '0' && b[i] <= '9' && xd < 4; i++, xd++ )
+				x = x * 10 + (b[i] - '0');
+			if( xd == 0 )
+				i = -1; // invalid
+			exp10 += eneg ? -x : x;
+		}
+
+		if( i != e || digits == 0 || sig > 15 || exp10 < -22 || exp10 > 22 )
+			return Double.parseDouble(new String(b, s, e - s, StandardCharsets.US_ASCII));
+		double v = exp10 >= 0 ? mant * POW10[exp10] : mant / POW10[-exp10];
+		return neg ? -v : v;
+	}
+}
@@ -0,0 +1,182 @@
+package regioClust;
+
+// Least squares of small systems by the normal equations X'X b = X'y, without allocations per solve: Cholesky
+// factorization in a reusable workspace, Gaussian elimination with complete pivoting if X'X is (nearly) singular,
+// coefficients of dependent columns are then 0. A workspace is not thread-safe, get() gives one per thread.
+public class LeastSquares {
+
+	private static final double EPS = 1e-12; // smallest pivot relative to the largest diagonal element
+
+	private static final ThreadLocal<LeastSquares> local = new ThreadLocal<LeastSquares>();
+
+	public final int p;
+	public final double[][] xtx; // for sums of statistics by the caller
+	public final double[] xty;
+	private final double[] a; // factorization, row-major
+	private final double[] beta, z;
+	private final int[] perm;
+
+	public LeastSquares( int p ) {
+		this.p = p;
+		this.xtx = new double[p][p];
+		this.xty = new double[p];
+		this.a = new double[p * p];
+		this.beta = new double[p];
+		this.z = new double[p];
+		this.perm = new int[p];
+	}
+
+	// workspace of the current thread for systems of size p
+	public static LeastSquares get( int p ) {
+		LeastSquares ls = local.get();
+		if( ls == null || ls.p != p ) {
+			ls = new LeastSquares(p);
+			local.set(ls);
+		}
+		return ls;
+	}
+
+	// beta: receives the solution, may be null if only getRSS() is needed
+	//@return false if xtx is singular and the pivoted fallback was used
+	public boolean solve( double[][] xtx, double[] xty, double[] beta ) {
+		return solve(xtx, xty, beta, null);
+	}
+	
+	// factor: receives the Cholesky factor of xtx (p * p, row-major) for invert(), not set if xtx is singular
+	public boolean solve( double[][] xtx, double[] xty, double[] beta, double[] factor ) {
+		boolean full = cholesky(xtx, xty);
+		if( full && factor != null )
+			System.arraycopy(a, 0, factor, 0, p * p);
+		if( !full )
+			pivoted(xtx, xty);
+		if( beta != null )
+			System.arraycopy(this.beta, 0, beta, 0, p);
+		return full;
+	}
+
+	// residual sum of squares y'y - beta'X'y at the solution
+	public double getRSS( double[][] xtx, double[] xty, double yty ) {
+		solve(xtx, xty, null);
+		double rss = yty;
+		for( int i = 0; i < p; i++ )
+			rss -= beta[i] * xty[i];
+		return Math.max(0, rss);
+	}
+
+	// inverse of xtx from its Cholesky factor as given by solve(), solved for each unit vector, no new factorization
+	public void invert( double[] factor, double[][] inv ) {
+		System.arraycopy(factor, 0, a, 0, p * p);
+		for( int k = 0; k < p; k++ ) {
+			for( int i = 0; i < p; i++ )
+				this.xty[i] = i == k ? 1 : 0;
+			substitute(this.xty);
+			for( int i = 0; i < p; i++ )
+				inv[i][k] = beta[i];
+		}
+	}
+
+	private boolean cholesky( double[][] m, double[] v ) {
+		if( !factor(m) )
+			return false;
+		substitute(v);
+		return true;
+	}
+
+	// X'X = L L', L in the lower triangle of a
+	private boolean factor( double[][] m ) {
+		double maxDiag = 0;
+		for( int i = 0; i < p; i++ )
+			maxDiag = Math.max(maxDiag, Math.abs(m[i][i]));
+		for( int j = 0; j < p; j++ ) {
+			double d = m[j][j];
+			for( int k = 0; k < j; k++ )
+				d -= a[j * p + k] * a[j * p + k];
+			if( !(d > EPS * maxDiag) )
+				return false;
+			double l = Math.sqrt(d);
+			a[j * p + j] = l;
+			for( int i = j + 1; i < p; i++ ) {
+				double s = m[i][j];
+				for( int k = 0; k < j; k++ )
+					s -= a[i * p + k] * a[j * p + k];
+				a[i * p + j] = s / l;
+			}
+		}
+		return true;
+	}
+
+	// solves L z = v and L' beta = z
+	private void substitute( double[] v ) {
+		for( int i = 0; i < p; i++ ) {
+			double s = v[i];
+			for( int k = 0; k < i; k++ )
+				s -= a[i * p + k] * z[k];
+			z[i] = s / a[i * p + i];
+		}
+		for( int i = p - 1; i >= 0; i-- ) {
+			double s = z[i];
+			for( int k = i + 1; k < p; k++ )
+				s -= a[k * p + i] * beta[k];
+			beta[i] = s / a[i * p + i];
+		}
+	}
+
+	// Gaussian elimination with complete pivoting, stops at the first pivot below the tolerance
+	private void pivoted( double[][] m, double[] v ) {
+		double max = 0;
+		for( int i = 0; i < p; i++ ) {
+			for( int j = 0; j < p; j++ ) {
+				a[i * p + j] = m[i][j];
+				max = Math.max(max, Math.abs(m[i][j]));
+			}
+			z[i] = v[i];
+			perm[i] = i;
+		}
+
+		int rank = 0;
+		for( int k = 0; k < p; k++ ) {
+			int pi = k, pj = k;
+			for( int i = k; i < p; i++ )
+				for( int j = k; j < p; j++ )
+					if( Math.abs(a[i * p + j]) > Math.abs(a[pi * p + pj]) ) {
+						pi = i;
+						pj = j;
+					}
+			if( !(Math.abs(a[pi * p + pj]) > EPS * max) )
+				break;
+			for( int j = 0; j < p; j++ ) { // rows
+				double t = a[k * p + j];
+				a[k * p + j] = a[pi * p + j];
+				a[pi * p + j] = t;
+			}
+			double t = z[k];
+			z[k] = z[pi];
+			z[pi] = t;
+			for( int i = 0; i < p; i++ ) { // columns
+				t = a[i * p + k];
+				a[i * p + k] = a[i * p + pj];
+				a[i * p + pj] = t;
+			}
+			int ti = perm[k];
+			perm[k] = perm[pj];
+			perm[pj] = ti;
+
+			for( int i = k + 1; i < p; i++ ) {
+				double f = a[i * p + k] / a[k * p + k];
+				for( int j = k; j < p; j++ )
+					a[i * p + j] -= f * a[k * p + j];
+				z[i] -= f * z[k];
+			}
+			rank++;
+		}
+
+		for( int i = 0; i < p; i++ )
+			beta[i] = 0;
+		for( int i = rank - 1; i >= 0; i-- ) {
+			double s = z[i];
+			for( int k = i + 1; k < rank; k++ )
+				s -= a[i * p + k] * beta[perm[k]];
+			beta[perm[i]] = s / a[i * p + i];
+		}
+	}
+}
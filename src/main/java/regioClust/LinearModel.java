@@ -2,142 +2,347 @@ package regioClust;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
+import org.apache.commons.math3.distribution.TDistribution;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.log4j.Logger;
 import org.jblas.DoubleMatrix;
-import org.jblas.MatrixFunctions;
 import org.jblas.Solve;
 
 public class LinearModel {
+	private static Logger log = Logger.getLogger(LinearModel.class);
+	
 	private List<DoubleMatrix> betas;
-	private List<Double> residuals = null;
-	List<double[]> samples;
+	List<double[]> samples; // rows, null if fitted to columns
+	double[][] columns; // all columns as in DataFrame.columns, null if fitted to rows
 	int[] fa;
 	int ta, maxIter;
-	private double rss = -1;
+	private Fit fit = null;
+	private Inference inference = null;
+	private List<GramStats> stats = new ArrayList<>(); // of each cluster
+	private List<double[]> factors = new ArrayList<>(); // Cholesky factor of X'X of each cluster, null if singular
 	
 	boolean zScore;
-	List<Set<double[]>> cluster;
+	List<int[]> cluster; // row ids of samples
+	private int[] labels; // cluster of each row, -1 if none
+	private Map<double[], Integer> rowIds = null; // by identity, built on first use
 	private List<double[]> means = new ArrayList<>(), sds = new ArrayList<>();
 	
 	public LinearModel(List<double[]> samples, int[] fa, int ta, boolean zScore ) {
 		this( samples, null, fa, ta, zScore);
 	}
 	
-	public LinearModel(List<double[]> samples, List<Set<double[]>> cluster,int[] fa, int ta, boolean zScore ) {
+	public LinearModel(List<double[]> samples, List<int[]> cluster,int[] fa, int ta, boolean zScore ) {
+		this(samples, null, cluster, fa, ta, zScore);
+	}
+	
+	// columns: all columns of the data, see DataFrame.columns, fa and ta index them, so that no rows are needed
+	public LinearModel(double[][] columns, List<int[]> cluster, int[] fa, int ta, boolean zScore ) {
+		this(null, columns, cluster, fa, ta, zScore);
+	}
+	
+	private LinearModel(List<double[]> samples, double[][] columns, List<int[]> cluster, int[] fa, int ta, boolean zScore ) {
 		this.samples = samples;
+		this.columns = columns;
 		this.fa = fa;
 		this.ta = ta;
 		this.zScore = zScore;
 		this.betas = new ArrayList<>();
 		
+		int n = samples != null ? samples.size() : columns[ta].length;
 		if( cluster == null ) {
+			int[] all = new int[n];
+			for( int i = 0; i < all.length; i++ )
+				all[i] = i;
 			this.cluster = new ArrayList<>();
-			this.cluster.add( new HashSet<>(samples));
+			this.cluster.add( all );
 		} else {
 			this.cluster = cluster;
 		}
+		
+		this.labels = new int[n];
+		Arrays.fill(labels, -1);
+		for( int j = 0; j < this.cluster.size(); j++ )
+			for( int r : this.cluster.get(j) )
+				labels[r] = j;
 				
+		// a column of ones for the intercept, last, as GramStats takes it
+		double[][] xi = null;
+		if( columns != null && !zScore ) {
+			xi = new double[fa.length + 1][];
+			for( int i = 0; i < fa.length; i++ )
+				xi[i] = columns[fa[i]];
+			xi[fa.length] = new double[n];
+			Arrays.fill(xi[fa.length], 1.0);
+		}
+		
 		for( int j = 0; j < this.cluster.size(); j++ ) {
-			Set<double[]> c = this.cluster.get(j);
+			int[] rows = this.cluster.get(j);
 			
-			List<double[]> l = new ArrayList<double[]>(c);
-			
-			DoubleMatrix Y = new DoubleMatrix( LinearModel.getY( l, ta) );
-			DoubleMatrix X;
+			// X'X and X'y straight from the rows, solved in the workspace of the thread
+			GramStats g;
 			if( zScore ) {				
 				double[] mean = new double[fa.length], sd = new double[fa.length];
 				for( int i = 0; i < fa.length; i++ ) {
 					SummaryStatistics ss = new SummaryStatistics();
-					for( double[] d : c )
-						ss.addValue( d[fa[i]] );				
+					for( int r : rows )
+						ss.addValue( get(r, fa[i]) );				
 					mean[i] = ss.getMean();
 					sd[i] = ss.getStandardDeviation();
 				}
 				means.add(mean);
-				sds.add(sd);					
-				X = new DoubleMatrix( LinearModel.getX( l, fa, mean, sd, true) );	
-			} else 
-				X = new DoubleMatrix( LinearModel.getX( l, fa, true) );	
-			
-			// calculate beta
-			DoubleMatrix Xt = X.transpose();
-			DoubleMatrix XtX = Xt.mmul(X);
-			DoubleMatrix beta = Solve.solve(XtX, Xt.mmul(Y));
-			betas.add(beta);
-						
-			// calculate std beta error, not here because expsensive and rarely needed
-			/*DoubleMatrix betaVar = Solve.pinv(XtX);			
-			DoubleMatrix residuals = Y.sub( X.mmul(beta) ); // predictions
-			
-			double sigma = residuals.dot(residuals)/(X.rows-X.columns);
-			DoubleMatrix stdBetaError = MatrixFunctions.sqrt( betaVar.diag().mul(sigma) );*/
+				sds.add(sd);
+				g = new GramStats(fa.length + 1);
+				double[] x = new double[fa.length + 1];
+				x[fa.length] = 1.0; // intercept
+				for( int r : rows ) {
+					for( int i = 0; i < fa.length; i++ )
+						x[i] = (get(r, fa[i]) - mean[i]) / sd[i];
+					g.add(x, get(r, ta));
+				}
+			} else if( columns != null )
+				g = new GramStats(xi, columns[ta], rows);
+			else
+				g = new GramStats(samples, rows, fa, ta);
+			int np = fa.length + 1;
+			double[] beta = new double[np], factor = new double[np * np];
+			boolean full = LeastSquares.get(np).solve(g.xtx, g.xty, beta, factor);
+			betas.add(new DoubleMatrix(beta));
+			stats.add(g); // kept for the inference
+			factors.add(full ? factor : null);
 		}			
 	}
+	
+	// value of row r in column c
+	private double get( int r, int c ) {
+		return samples != null ? samples.get(r)[c] : columns[c][r];
+	}
+	
+	// standard errors, t- and p-values of the coefficients and RSS of each cluster
+	public static class Inference {
+		public double[] rss;
+		public double[][] se, t, p; // NaN if there are not more rows than coefficients
+		public boolean[] singular; // X'X of the cluster is singular, standard errors are from its pseudo-inverse
+	}
+	
+	// all clusters in one batch, clusters in parallel
+	public synchronized Inference getInference( int threads ) {
+		if( inference != null )
+			return inference;
+		final Fit f = getFit(threads);
+		final Inference r = new Inference();
+		final int k = cluster.size(), np = fa.length + 1;
+		r.rss = new double[k];
+		r.se = new double[k][np];
+		r.t = new double[k][np];
+		r.p = new double[k][np];
+		r.singular = new boolean[k];
+		ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(k, threads * ParallelUtils.CHUNKS_PER_THREAD), new ParallelUtils.RangeCallable<Void>() {
+			@Override
+			public Void call(int from, int to) {
+				double[][] inv = new double[np][np];
+				for( int j = from; j < to; j++ ) {
+					int[] rows = cluster.get(j);
+					double rss = 0;
+					for( int i : rows )
+						rss += f.residuals[i] * f.residuals[i];
+					r.rss[j] = rss;
+					
+					int df = rows.length - np;
+					boolean ok = df > 0;
+					if( ok && factors.get(j) != null ) // factored by the fit already
+						LeastSquares.get(np).invert(factors.get(j), inv);
+					else if( ok ) { // singular, as the fit falls back
+						DoubleMatrix pinv = Solve.pinv(new DoubleMatrix(stats.get(j).xtx));
+						for( int i = 0; i < np; i++ )
+							inv[i][i] = pinv.get(i, i);
+						r.singular[j] = true;
+					}
+					TDistribution td = ok ? new TDistribution(df) : null;
+					double sigma = rss / df;
+					double[] beta = betas.get(j).data;
+					for( int i = 0; i < np; i++ ) {
+						if( !ok ) {
+							r.se[j][i] = r.t[j][i] = r.p[j][i] = Double.NaN;
+							continue;
+						}
+						r.se[j][i] = Math.sqrt(inv[i][i] * sigma);
+						r.t[j][i] = beta[i] / r.se[j][i];
+						r.p[j][i] = 2 * td.cumulativeProbability(-Math.abs(r.t[j][i]));
+					}
+				}
+				return null;
+			}
+		});
+		
+		List<Integer> singular = new ArrayList<>();
+		for( int j = 0; j < k; j++ )
+			if( r.singular[j] )
+				singular.add(j);
+		if( !singular.isEmpty() )
+			log.warn("X'X of clusters " + singular + " is singular, standard errors are from the pseudo-inverse");
+		return inference = r;
+	}
+				
+	// predictions of all rows by the model of their cluster, with residuals and their summaries
+	public static class Fit {
+		public double[] predictions, residuals; // NaN for rows without cluster
+		public int n; // rows with cluster
+		public double rss, mse, r2;
+	}
+	
+	public Fit getFit() {
+		return getFit(1);
+	}
+	
+	// one pass over the rows by their labels, chunks of rows in parallel
+	public synchronized Fit getFit( int threads ) {
+		if( fit != null )
+			return fit;
+		final Fit f = new Fit();
+		f.predictions = new double[labels.length];
+		f.residuals = new double[labels.length];
+		
+		// per chunk: rows, rss, mean and sum of squared deviations of y
+		List<double[]> parts = ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(labels.length, threads * ParallelUtils.CHUNKS_PER_THREAD), new ParallelUtils.RangeCallable<double[]>() {
+			@Override
+			public double[] call(int from, int to) {
+				double n = 0, rss = 0, mean = 0, m2 = 0;
+				for( int i = from; i < to; i++ ) {
+					if( labels[i] < 0 ) {
+						f.predictions[i] = f.residuals[i] = Double.NaN;
+						continue;
+					}
+					double y = get(i, ta);
+					double p = samples != null ? predict(labels[i], samples.get(i), fa) : predict(labels[i], i);
+					double r = y - p;
+					f.predictions[i] = p;
+					f.residuals[i] = r;
+					rss += r * r;
+					
+					n++;
+					double delta = y - mean;
+					mean += delta / n;
+					m2 += delta * (y - mean);
+				}
+				return new double[] { n, rss, mean, m2 };
+			}
+		});
+		
+		// combine chunks, total sum of squares by the parallel variance algorithm
+		double n = 0, mean = 0, tss = 0;
+		for( double[] c : parts ) {
+			f.rss += c[1];
+			if( c[0] == 0 )
+				continue;
+			double delta = c[2] - mean;
+			tss += c[3] + delta * delta * n * c[0] / (n + c[0]);
+			mean += delta * c[0] / (n + c[0]);
+			n += c[0];
+		}
+		f.n = (int) n;
+		f.mse = f.rss / n;
+		f.r2 = 1.0 - f.rss / tss;
+		return fit = f;
+	}
+	
+	// prediction of model j for one row
+	private double predict( int j, double[] d, int[] faPred ) {
+		double[] beta = betas.get(j).data;
+		double p = beta[faPred.length]; // intercept
+		if( zScore ) {
+			double[] mean = means.get(j), sd = sds.get(j);
+			for( int i = 0; i < faPred.length; i++ )
+				p += (d[faPred[i]] - mean[i]) / sd[i] * beta[i];
+		} else
+			for( int i = 0; i < faPred.length; i++ )
+				p += d[faPred[i]] * beta[i];
+		return p;
+	}
+				
+	// prediction of model j for row r of the columns
+	private double predict( int j, int r ) {
+		double[] beta = betas.get(j).data;
+		double p = beta[fa.length]; // intercept
+		if( zScore ) {
+			double[] mean = means.get(j), sd = sds.get(j);
+			for( int i = 0; i < fa.length; i++ )
+				p += (columns[fa[i]][r] - mean[i]) / sd[i] * beta[i];
+		} else
+			for( int i = 0; i < fa.length; i++ )
+				p += columns[fa[i]][r] * beta[i];
+		return p;
+	}
 				
 	public List<Double> getResiduals() {
-		if( residuals == null ) {
-			List<Double> predictions = getPredictions(samples, fa);
-			residuals = new ArrayList<Double>();
-			for( int i = 0; i < samples.size(); i++ )
-				residuals.add( samples.get(i)[ta] - predictions.get(i) );
-		} 
-		return residuals;	
+		Fit f = getFit();
+		List<Double> r = new ArrayList<Double>(f.residuals.length);
+		for( double d : f.residuals )
+			r.add(d);
+		return r;	
 	}
 		
 	public double getRSS() {
-		if( rss < 0 ) {
-			rss = 0;
-			for( double d : getResiduals() )
-				rss += d*d;
-		}
-		return rss;
+		return getFit().rss;
 	}
 	
 	public double getRSS( int i ) {
-		List<double[]> l = new ArrayList<>(cluster.get(i));
-		List<Double> pred = getPredictions(l, fa);
-		return SupervisedUtils.getResidualSumOfSquares(pred, l, ta);
+		return getInference(1).rss[i];
 	}
-				
-	public List<Double> getPredictions( List<double[]> samples, int[] faPred ) {		
-		Double[] predictions = new Double[samples.size()];
-							
-		for (int l = 0; l < betas.size(); l++ ) {
-			Set<double[]> c = cluster.get(l);
-			
-			List<double[]> subSamples = new ArrayList<>();
-			Map<Integer,Integer> idxMap = new HashMap<Integer,Integer>(); 
-			for( int i = 0; i < samples.size(); i++ ) {
-				double[] d = samples.get(i);
-				if( cluster.size() == 1 || c.contains( d ) ) {
-					idxMap.put(subSamples.size(), i);
-					subSamples.add(d);
-				}
+	
+	// Predictions of samples (any rows, in any order) by the models of their clusters, null for rows without one. Rows
+	// are matched to the fitted ones by identity, so use getPredictions(samples, labels, faPred) for other rows or a
+	// model fitted to columns.
+	public List<Double> getPredictions( List<double[]> samples, int[] faPred ) {
+		int[] l = new int[samples.size()];
+		if( cluster.size() > 1 ) {
+			Map<double[], Integer> ids = getRowIds();
+			for( int i = 0; i < l.length; i++ ) {
+				Integer r = ids.get(samples.get(i));
+				l[i] = r == null ? -1 : labels[r];
 			}
-			
-			if( subSamples.isEmpty() )
-				continue;
-							
-			DoubleMatrix X;
-			if( zScore )
-				X = new DoubleMatrix( LinearModel.getX( subSamples, faPred, means.get(l), sds.get(l), true) );
-			else
-				X = new DoubleMatrix( LinearModel.getX( subSamples, faPred, true) );
-			
-			DoubleMatrix beta = betas.get(l);
-			double[] p = X.mmul(beta).data;
-			for( int i = 0; i < p.length; i++ )
-				predictions[idxMap.get(i)] = p[i];				
 		}
+		double[] p = getPredictions(samples, l, faPred);
+		Double[] predictions = new Double[p.length];
+		for( int i = 0; i < p.length; i++ )
+			if( l[i] >= 0 )
+				predictions[i] = p[i];
 		return Arrays.asList(predictions);
 	}
 	
+	// Predictions of samples by the models of the clusters in labels, one per row, NaN for label -1
+	public double[] getPredictions( List<double[]> samples, int[] labels, int[] faPred ) {
+		if( labels.length != samples.size() )
+			throw new RuntimeException("Number of labels does not match the number of samples: " + labels.length + "!=" + samples.size());
+		double[] predictions = new double[samples.size()];
+		for( int i = 0; i < predictions.length; i++ ) {
+			int j = labels[i];
+			if( j >= cluster.size() )
+				throw new RuntimeException("No cluster " + j + ", there are " + cluster.size());
+			predictions[i] = j < 0 ? Double.NaN : predict(j, samples.get(i), faPred);
+		}
+		return predictions;
+	}
+	
+	// row id of each fitted row
+	private synchronized Map<double[], Integer> getRowIds() {
+		if( rowIds == null ) {
+			rowIds = new IdentityHashMap<>();
+			if( samples != null ) // no rows if fitted to columns
+				for( int i = 0; i < samples.size(); i++ )
+					rowIds.put(samples.get(i), i);
+		}
+		return rowIds;
+	}
+	
+	// cluster of each row, -1 if none
+	public int[] getLabels() {
+		return labels;
+	}
+	
 	public static double[] getY(List<double[]> samples, int ta) {
 		double[] y = new double[samples.size()];
 		for (int i = 0; i < samples.size(); i++)
@@ -170,25 +375,20 @@ public class LinearModel {
 		return betas.get(i).data;
 	}
 	
+	// means and standard deviations of the independent variables of cluster i, null if not z-scored
+	public double[] getMean(int i) {
+		return zScore ? means.get(i) : null;
+	}
+	
+	public double[] getSd(int i) {
+		return zScore ? sds.get(i) : null;
+	}
+	
 	public double[] getBetaStdError(int i) {
-		List<double[]> l = new ArrayList<>(cluster.get(i));
-		DoubleMatrix Y = new DoubleMatrix( LinearModel.getY( l, ta) );
-		DoubleMatrix X;
-		if( zScore )
-			X = new DoubleMatrix( LinearModel.getX( l, fa, means.get(i), sds.get(i), true) );
-		else
-			X = new DoubleMatrix( LinearModel.getX( l, fa, true) );
-		DoubleMatrix XtX = X.transpose().mmul(X);
-		
-		DoubleMatrix betaVar = Solve.pinv(XtX);			
-		DoubleMatrix residuals = Y.sub( X.mmul(betas.get(i)) ); // predictions
-					
-		double sigma = residuals.dot(residuals)/(X.rows-X.columns);
-		DoubleMatrix stdBetaError = MatrixFunctions.sqrt( betaVar.diag().mul(sigma) );
-		return stdBetaError.data;
+		return getInference(1).se[i];
 	}
 		
-	public List<Set<double[]>> getCluster() {
+	public List<int[]> getCluster() {
 		return cluster;
 	}
 }
\ No newline at end of file
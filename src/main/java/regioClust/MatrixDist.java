@@ -0,0 +1,29 @@
+package regioClust;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Precomputed distances of samples, looked up by row id. Distances of sample arrays need setSamples() first.
+public abstract class MatrixDist implements Dist<double[]>, RowDist {
+
+	private Map<double[], Integer> idxMap = null;
+
+	public abstract int getRowCount();
+
+	public void setSamples( List<double[]> samples ) {
+		if( samples.size() != getRowCount() )
+			throw new RuntimeException("Distance matrix has " + getRowCount() + " rows, expected " + samples.size());
+		idxMap = new HashMap<double[], Integer>();
+		for( int i = 0; i < samples.size(); i++ )
+			idxMap.put(samples.get(i), i);
+	}
+
+	@Override
+	public double dist( double[] a, double[] b ) {
+		Integer i = idxMap.get(a), j = idxMap.get(b);
+		if( i == null || j == null )
+			throw new RuntimeException("Not a sample, distances of a matrix are only known between samples");
+		return dist(i, j);
+	}
+}
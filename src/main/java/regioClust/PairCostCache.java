@@ -0,0 +1,199 @@
+package regioClust;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Costs of unordered pairs of node ids 0..n-1, for concurrent use. A pair is packed into one long key, keys and
+// values are kept in open-addressed tables (linear probing), one per stripe with its own lock. Invalidating a node
+// only marks it and counts its entries as stale. A full stripe is purged of them only if about a quarter of it is
+// stale (stale entries spread evenly over the stripes), otherwise an entry is evicted, so that a cache never holds
+// more than maxEntries and a full stripe is not rehashed after every invalidation.
+public class PairCostCache {
+
+	private static final long EMPTY = -1;
+
+	// about 16 bytes per entry plus free slots
+	public static final long DEFAULT_MAX_ENTRIES = 1 << 22;
+
+	private final Stripe[] stripes;
+	private final AtomicLongArray dead; // bitset of invalidated node ids
+	private final AtomicIntegerArray entries; // cached entries per node id
+	private final AtomicLong stale = new AtomicLong(); // entries of invalidated nodes, summed over all invalidations
+
+	private static class Stripe {
+		long[] keys;
+		double[] values;
+		int size = 0, maxSize, hand = 0;
+		long purged = 0; // stale at last purge
+
+		Stripe( int maxSize ) {
+			this.maxSize = maxSize;
+			this.keys = new long[16];
+			this.values = new double[16];
+			Arrays.fill(keys, EMPTY);
+		}
+	}
+
+	public PairCostCache( int n, long maxEntries ) {
+		this(n, maxEntries, 64);
+	}
+
+	public PairCostCache( int n, long maxEntries, int nrStripes ) {
+		int s = Integer.highestOneBit(Math.max(1, nrStripes - 1) << 1); // next power of two
+		this.stripes = new Stripe[s];
+		int maxSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, maxEntries / s));
+		for( int i = 0; i < s; i++ )
+			stripes[i] = new Stripe(maxSize);
+		this.dead = new AtomicLongArray((n + 63) / 64);
+		this.entries = new AtomicIntegerArray(n);
+	}
+
+	private static long key( int a, int b ) {
+		return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+	}
+
+	private static int hash( long k ) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		return (int) k;
+	}
+
+	private Stripe stripe( int h ) {
+		return stripes[(h >>> 24) & (stripes.length - 1)];
+	}
+
+	private boolean isDead( int node ) {
+		return (dead.get(node >>> 6) & 1L << node) != 0;
+	}
+
+	private boolean isDead( long k ) {
+		return isDead((int) (k >>> 32)) || isDead((int) k);
+	}
+
+	// @return cost of pair (a,b) or NaN if it is not cached
+	public double get( int a, int b ) {
+		if( isDead(a) || isDead(b) )
+			return Double.NaN;
+		long k = key(a, b);
+		int h = hash(k);
+		Stripe s = stripe(h);
+		synchronized (s) {
+			int mask = s.keys.length - 1;
+			for( int i = h & mask; s.keys[i] != EMPTY; i = (i + 1) & mask )
+				if( s.keys[i] == k )
+					return s.values[i];
+		}
+		return Double.NaN;
+	}
+
+	public void put( int a, int b, double cost ) {
+		if( isDead(a) || isDead(b) )
+			return;
+		long k = key(a, b);
+		int h = hash(k);
+		Stripe s = stripe(h);
+		synchronized (s) {
+			int mask = s.keys.length - 1;
+			for( int i = h & mask; s.keys[i] != EMPTY; i = (i + 1) & mask )
+				if( s.keys[i] == k ) {
+					s.values[i] = cost;
+					return;
+				}
+
+			if( s.size >= s.maxSize && ((stale.get() - s.purged) / stripes.length * 4 < s.maxSize || purge(s) == 0) )
+				evict(s);
+			if( (s.size + 1) * 4 > s.keys.length * 3 ) // keep load factor <= 0.75
+				resize(s, s.keys.length * 2);
+			insert(s, k, cost);
+			s.size++;
+			entries.incrementAndGet(a);
+			entries.incrementAndGet(b);
+		}
+	}
+
+	// all entries with node become invalid
+	public void invalidate( int node ) {
+		long bit = 1L << node;
+		int w = node >>> 6;
+		long v;
+		do
+			v = dead.get(w);
+		while( !dead.compareAndSet(w, v, v | bit) );
+		stale.addAndGet(entries.get(node));
+	}
+
+	public long size() {
+		long size = 0;
+		for( Stripe s : stripes )
+			synchronized (s) {
+				size += s.size;
+			}
+		return size;
+	}
+
+	private static void insert( Stripe s, long k, double cost ) {
+		int mask = s.keys.length - 1;
+		int i = hash(k) & mask;
+		while( s.keys[i] != EMPTY )
+			i = (i + 1) & mask;
+		s.keys[i] = k;
+		s.values[i] = cost;
+	}
+
+	// drops entries of invalidated nodes on the way
+	private void resize( Stripe s, int length ) {
+		long[] keys = s.keys;
+		double[] values = s.values;
+		s.purged = stale.get();
+		s.keys = new long[length];
+		s.values = new double[length];
+		Arrays.fill(s.keys, EMPTY);
+		s.size = 0;
+		for( int i = 0; i < keys.length; i++ )
+			if( keys[i] == EMPTY )
+				continue;
+			else if( !isDead(keys[i]) ) {
+				insert(s, keys[i], values[i]);
+				s.size++;
+			} else
+				remove(keys[i]);
+	}
+
+	// drops entries of invalidated nodes, @return number of dropped entries
+	private int purge( Stripe s ) {
+		int size = s.size;
+		resize(s, s.keys.length);
+		return size - s.size;
+	}
+
+	// removes the next entry after the clock hand
+	private void evict( Stripe s ) {
+		int mask = s.keys.length - 1;
+		while( s.keys[s.hand] == EMPTY )
+			s.hand = (s.hand + 1) & mask;
+		int i = s.hand;
+		s.hand = (s.hand + 1) & mask;
+		remove(s.keys[i]);
+
+		// backward shift deletion, no tombstones
+		for( int j = (i + 1) & mask; s.keys[j] != EMPTY; j = (j + 1) & mask ) {
+			int h = hash(s.keys[j]) & mask;
+			if( ((j - h) & mask) >= ((j - i) & mask) ) {
+				s.keys[i] = s.keys[j];
+				s.values[i] = s.values[j];
+				i = j;
+			}
+		}
+		s.keys[i] = EMPTY;
+		s.size--;
+	}
+
+	// counts of the nodes of a dropped entry
+	private void remove( long k ) {
+		entries.decrementAndGet((int) (k >>> 32));
+		entries.decrementAndGet((int) k);
+	}
+}
@@ -0,0 +1,88 @@
+package regioClust;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class ParallelUtils {
+
+	// more chunks than threads, so that idle workers can steal the remaining ones
+	public static final int CHUNKS_PER_THREAD = 4;
+
+	private static ForkJoinPool pool = null;
+
+	public interface RangeCallable<T> {
+		public T call( int from, int to );
+	}
+
+	// one long-lived pool for all phases, only re-created if the number of threads changes
+	public static synchronized ForkJoinPool getPool( int threads ) {
+		if( pool == null || pool.getParallelism() != threads ) {
+			if( pool != null )
+				pool.shutdown();
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	// chunk bounds of [0,n) with equal sizes
+	public static int[] getBounds( int n, int chunks ) {
+		chunks = Math.max( 1, Math.min(n, chunks) );
+		int[] bounds = new int[chunks + 1];
+		for( int k = 0; k <= chunks; k++ )
+			bounds[k] = (int)( (long)n * k / chunks );
+		return bounds;
+	}
+
+	// chunk bounds of [0,n) with about the same number of pairs (i,j), i < j, per chunk
+	public static int[] getTriangularBounds( int n, int chunks ) {
+		chunks = Math.max( 1, Math.min(n, chunks) );
+		long total = (long)n * (n - 1) / 2;
+		int[] bounds = new int[chunks + 1];
+
+		long pairs = 0;
+		int k = 1;
+		for( int i = 0; i < n && k < chunks; i++ ) {
+			pairs += n - 1 - i;
+			while( k < chunks && pairs >= total * k / chunks )
+				bounds[k++] = i + 1;
+		}
+		while( k <= chunks )
+			bounds[k++] = n;
+		return bounds;
+	}
+
+	// calls c for each chunk and waits for all of them, results are in order of chunks
+	public static <T> List<T> invokeAll( int threads, final int[] bounds, final RangeCallable<T> c ) {
+		List<T> results = new ArrayList<T>();
+		if( threads <= 1 || bounds.length <= 2 ) {
+			for( int k = 0; k < bounds.length - 1; k++ )
+				results.add( c.call(bounds[k], bounds[k + 1]) );
+			return results;
+		}
+
+		List<Callable<T>> tasks = new ArrayList<Callable<T>>();
+		for( int k = 0; k < bounds.length - 1; k++ ) {
+			final int from = bounds[k], to = bounds[k + 1];
+			tasks.add( new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					return c.call(from, to);
+				}
+			});
+		}
+
+		try {
+			for( Future<T> f : getPool(threads).invokeAll(tasks) )
+				results.add( f.get() );
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+}
@@ -5,6 +5,8 @@ import java.util.List;
 
 import com.beust.jcommander.Parameter;
 
+import regioClust.Clustering.HierarchicalClusteringType;
+
 public class Parameters {
 	@Parameter(names = "-indep", description = "Indices of independent variables", required = true)
 	List<Integer> indep;
@@ -18,18 +20,42 @@ public class Parameters {
 	@Parameter(names = "-inshape", description = "Input ShapeFile", required = true)
 	String inshape;
 	
-	@Parameter(names = "-outshape", description = "Output ShapeFile", required = true)
+	@Parameter(names = "-outshape", description = "Output ShapeFile, or CSV/GeoJSON file if it ends with .csv/.geojson (optionally .gz)", required = true)
 	String outshape;
 	
+	@Parameter(names = "-outmodel", description = "Output model file of the regions and their coefficients, for scoring with regioClust.Predictor")
+	String outmodel = null;
+	
+	@Parameter(names = "-outcurve", description = "Output CSV file of RSS, MSE, R2, AICc and BIC for every number of clusters of the tree of step 2")
+	String outcurve = null;
+	
 	@Parameter(names = "-indist", description = "Input dist matrix")
 	String inweight = null;
 	
+	@Parameter(names = "-offheap", description = "Keep distance matrices read from CSV outside of the Java heap")
+	boolean offHeap = false;
+	
 	@Parameter(names = "-incont", description = "Input contiguity matrix")
 	String incont = null;
 	
+	@Parameter(names = "-rook", description = "Rook instead of queen contiguity if no contiguity matrix is given")
+	boolean rook = false;
+	
+	@Parameter(names = "-snap", description = "Derive contiguity from shared vertices/segments, vertices at most this far apart in x and y are the same")
+	Double snap = null;
+	
+	@Parameter(names = "-knn", description = "Symmetric k-nearest-neighbour contiguity of coordinates (or centroids) instead of polygon contiguity if no contiguity matrix is given")
+	Integer knn = null;
+	
 	@Parameter(names = "-threads", description = "Number of threads.")
 	Integer nrThreads = 1;
 	
+	@Parameter(names = "-linkage", description = "Linkage of step 1 (ward, single_linkage, complete_linkage, average_linkage)")
+	HierarchicalClusteringType linkage = HierarchicalClusteringType.ward;
+	
+	@Parameter(names = "-maxcosts", description = "Max. number of cached linkages of step 1, not used by ward")
+	Long maxCosts = PairCostCache.DEFAULT_MAX_ENTRIES;
+	
 	@Parameter(names = "-minobs", description = "Min. observations per cluster", required = true )
 	Integer minObs;
 	
@@ -0,0 +1,385 @@
+package regioClust;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+// Scores new observations by the model of the region they fall into. Regions are the dissolved geometries of the
+// clusters of a fit, kept with the coefficients (and z-score parameters) of their models in a binary file, little endian:
+//  header, 32 bytes: magic "RMDL", version, regions k, coefficients p (intercept last), z-scored (0/1), bytes of names, 0
+//  names of the independent variables, UTF-8, separated by newlines, padded to 8 bytes
+//  per region: p coefficients, if z-scored p-1 means and p-1 standard deviations, bytes of WKB, WKB padded to 8 bytes
+// Points are located without JTS objects: a grid of cells over all regions gives candidate regions, whose ring edges
+// are kept in flat arrays, bucketed by horizontal bands, for crossing-number tests. Points outside of all regions can
+// go to the region with the nearest vertex. Nothing is allocated per point, so a Predictor can be shared by threads.
+public class Predictor {
+
+	public static final int MAGIC = 0x4c444d52; // "RMDL" read as little endian int
+	public static final int VERSION = 1;
+	private static final int HEADER = 32;
+
+	private final int p;
+	private final String[] names;
+	private final double[][] betas, means, sds; // means, sds: null if not z-scored
+	private final Geometry[] regions;
+	private final Area[] areas;
+	private final double minX, minY, cellW, cellH;
+	private final int gw, gh;
+	private final int[] cellStart, cellRegions; // regions whose envelope intersects a cell, by cell
+	private final KDTree vertices;
+	private final int[] vertexRegion;
+
+	// buffers of nearest-vertex queries
+	private final ThreadLocal<Probe> probes = new ThreadLocal<Probe>() {
+		@Override
+		protected Probe initialValue() {
+			return new Probe();
+		}
+	};
+
+	private static class Probe {
+		final double[] q = new double[2];
+		final KDTree.Buffer b = new KDTree.Buffer();
+	}
+
+	// edges of the rings of a region, indexed by horizontal bands of its envelope
+	private static class Area {
+		final double minX, minY, maxX, maxY, bandScale;
+		final double[] edges; // x1, y1, x2, y2 per edge
+		final int[] bandStart, bandEdges;
+
+		Area( List<Coordinate[]> rings ) {
+			int ne = 0;
+			double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+			for( Coordinate[] r : rings ) {
+				ne += Math.max(0, r.length - 1);
+				for( Coordinate c : r ) {
+					x0 = Math.min(x0, c.x);
+					y0 = Math.min(y0, c.y);
+					x1 = Math.max(x1, c.x);
+					y1 = Math.max(y1, c.y);
+				}
+			}
+			minX = x0;
+			minY = y0;
+			maxX = x1;
+			maxY = y1;
+			edges = new double[4 * ne];
+			int e = 0;
+			for( Coordinate[] r : rings )
+				for( int i = 0; i + 1 < r.length; i++ ) {
+					edges[e++] = r[i].x;
+					edges[e++] = r[i].y;
+					edges[e++] = r[i + 1].x;
+					edges[e++] = r[i + 1].y;
+				}
+
+			int nb = Math.max(1, ne / 2);
+			bandScale = maxY > minY ? nb / (maxY - minY) : 0;
+			bandStart = new int[nb + 1];
+			for( int i = 0; i < ne; i++ )
+				for( int b = band(Math.min(edges[4 * i + 1], edges[4 * i + 3])), t = band(Math.max(edges[4 * i + 1], edges[4 * i + 3])); b <= t; b++ )
+					bandStart[b + 1]++;
+			for( int b = 0; b < nb; b++ )
+				bandStart[b + 1] += bandStart[b];
+			bandEdges = new int[bandStart[nb]];
+			int[] pos = Arrays.copyOf(bandStart, nb);
+			for( int i = 0; i < ne; i++ )
+				for( int b = band(Math.min(edges[4 * i + 1], edges[4 * i + 3])), t = band(Math.max(edges[4 * i + 1], edges[4 * i + 3])); b <= t; b++ )
+					bandEdges[pos[b]++] = i;
+		}
+
+		int band( double y ) {
+			return Math.max(0, Math.min(bandStart.length - 2, (int) ((y - minY) * bandScale)));
+		}
+
+		// inside or on the boundary, by the parity of the edges crossed by a ray to the right
+		boolean covers( double x, double y ) {
+			if( x < minX || x > maxX || y < minY || y > maxY )
+				return false;
+			int b = band(y);
+			boolean inside = false;
+			for( int k = bandStart[b]; k < bandStart[b + 1]; k++ ) {
+				int e = 4 * bandEdges[k];
+				double x1 = edges[e], y1 = edges[e + 1], x2 = edges[e + 2], y2 = edges[e + 3];
+				if( (y1 > y) != (y2 > y) ) {
+					double xi = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+					if( xi == x )
+						return true;
+					if( xi > x )
+						inside = !inside;
+				} else if( y1 == y && y2 == y && x >= Math.min(x1, x2) && x <= Math.max(x1, x2) ) // on a horizontal edge
+					return true;
+				else if( (x1 == x && y1 == y) || (x2 == x && y2 == y) )
+					return true;
+			}
+			return inside;
+		}
+	}
+
+	private Predictor( String[] names, double[][] betas, double[][] means, double[][] sds, Geometry[] regions ) {
+		this.p = names.length + 1;
+		this.names = names;
+		this.betas = betas;
+		this.means = means;
+		this.sds = sds;
+		this.regions = regions;
+		this.areas = new Area[regions.length];
+		List<double[]> v = new ArrayList<>();
+		List<Integer> vr = new ArrayList<>();
+		List<Coordinate[]> rings = new ArrayList<>();
+		double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY, x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for( int j = 0; j < regions.length; j++ ) {
+			rings.clear();
+			GeoUtils.getRings(regions[j], rings);
+			areas[j] = new Area(rings);
+			x0 = Math.min(x0, areas[j].minX);
+			y0 = Math.min(y0, areas[j].minY);
+			x1 = Math.max(x1, areas[j].maxX);
+			y1 = Math.max(y1, areas[j].maxY);
+			for( Coordinate[] r : rings )
+				for( Coordinate c : r ) {
+					v.add(new double[] { c.x, c.y });
+					vr.add(j);
+				}
+		}
+		this.vertices = new KDTree(v, null);
+		this.vertexRegion = new int[vr.size()];
+		for( int i = 0; i < vertexRegion.length; i++ )
+			vertexRegion[i] = vr.get(i);
+
+		// about 4 cells per region
+		int g = Math.max(1, (int) Math.ceil(2 * Math.sqrt(regions.length)));
+		this.gw = g;
+		this.gh = g;
+		this.minX = x0;
+		this.minY = y0;
+		this.cellW = x1 > x0 ? (x1 - x0) / gw : 1;
+		this.cellH = y1 > y0 ? (y1 - y0) / gh : 1;
+		this.cellStart = new int[gw * gh + 1];
+		for( int j = 0; j < regions.length; j++ )
+			for( int c : cells(areas[j]) )
+				cellStart[c + 1]++;
+		for( int c = 0; c < gw * gh; c++ )
+			cellStart[c + 1] += cellStart[c];
+		this.cellRegions = new int[cellStart[gw * gh]];
+		int[] pos = Arrays.copyOf(cellStart, gw * gh);
+		for( int j = 0; j < regions.length; j++ )
+			for( int c : cells(areas[j]) )
+				cellRegions[pos[c]++] = j;
+	}
+
+	// cells of the grid the envelope of a intersects, none if a has no edges
+	private int[] cells( Area a ) {
+		if( a.edges.length == 0 )
+			return new int[0];
+		int x0 = cell(a.minX, minX, cellW, gw), x1 = cell(a.maxX, minX, cellW, gw);
+		int y0 = cell(a.minY, minY, cellH, gh), y1 = cell(a.maxY, minY, cellH, gh);
+		int[] r = new int[(x1 - x0 + 1) * (y1 - y0 + 1)];
+		for( int cy = y0, k = 0; cy <= y1; cy++ )
+			for( int cx = x0; cx <= x1; cx++ )
+				r[k++] = cy * gw + cx;
+		return r;
+	}
+
+	private static int cell( double v, double min, double size, int n ) {
+		return Math.max(0, Math.min(n - 1, (int) ((v - min) / size)));
+	}
+
+	public int getRegionCount() {
+		return regions.length;
+	}
+
+	// independent variables in the order predictions expect them
+	public String[] getNames() {
+		return names;
+	}
+
+	public Geometry getRegion( int j ) {
+		return regions[j];
+	}
+
+	public double[] getBeta( int j ) {
+		return betas[j];
+	}
+
+	// region that covers (x,y), hint: region to test first (e.g. the one of the previous point), -1 if none
+	public int locate( double x, double y, int hint ) {
+		if( hint >= 0 && areas[hint].covers(x, y) )
+			return hint;
+		if( !(x >= minX && y >= minY && x <= minX + gw * cellW && y <= minY + gh * cellH) )
+			return -1;
+		int c = cell(y, minY, cellH, gh) * gw + cell(x, minX, cellW, gw);
+		for( int k = cellStart[c]; k < cellStart[c + 1]; k++ ) {
+			int j = cellRegions[k];
+			if( j != hint && areas[j].covers(x, y) )
+				return j;
+		}
+		return -1;
+	}
+
+	// region with the vertex nearest to (x,y), -1 if there are no regions
+	public int locateNearest( double x, double y ) {
+		Probe pr = probes.get();
+		pr.q[0] = x;
+		pr.q[1] = y;
+		int v = vertices.nearest(pr.q, pr.b);
+		return v < 0 ? -1 : vertexRegion[v];
+	}
+
+	// region of a geometry by its interior point
+	public int locate( Geometry g, boolean nearest ) {
+		Coordinate c = g.getInteriorPoint().getCoordinate();
+		int j = locate(c.x, c.y, -1);
+		return j < 0 && nearest ? locateNearest(c.x, c.y) : j;
+	}
+
+	// prediction of region j for the p-1 values of the independent variables at x[offset]
+	public double predict( int j, double[] x, int offset ) {
+		double[] b = betas[j];
+		double r = b[p - 1];
+		if( means != null ) {
+			double[] m = means[j], s = sds[j];
+			for( int i = 0; i < p - 1; i++ )
+				r += (x[offset + i] - m[i]) / s[i] * b[i];
+		} else
+			for( int i = 0; i < p - 1; i++ )
+				r += x[offset + i] * b[i];
+		return r;
+	}
+
+	// Batch of n rows: x holds p-1 values per row, (cx[i],cy[i]) is the location of row i. Rows outside of all regions
+	// are NaN unless nearest. Consecutive rows are often in the same region, so that one is tested first.
+	public void predict( double[] x, double[] cx, double[] cy, double[] out, boolean nearest ) {
+		int last = -1;
+		for( int i = 0; i < out.length; i++ ) {
+			int j = locate(cx[i], cy[i], last);
+			if( j < 0 && nearest )
+				j = locateNearest(cx[i], cy[i]);
+			out[i] = j < 0 ? Double.NaN : predict(j, x, i * (p - 1));
+			if( j >= 0 )
+				last = j;
+		}
+	}
+
+	// Dissolves the geometries of each cluster of lm into its region, clusters in parallel. names: independent variables
+	public static void write( File fn, final LinearModel lm, final List<Geometry> geoms, String[] names, int threads ) throws IOException {
+		final List<int[]> cluster = lm.getCluster();
+		final Geometry[] regions = new Geometry[cluster.size()];
+		ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(regions.length, threads * ParallelUtils.CHUNKS_PER_THREAD), new ParallelUtils.RangeCallable<Void>() {
+			@Override
+			public Void call( int from, int to ) {
+				for( int j = from; j < to; j++ ) {
+					List<Geometry> l = new ArrayList<>();
+					for( int r : cluster.get(j) )
+						l.add(geoms.get(r));
+					regions[j] = new GeometryFactory().buildGeometry(l).union();
+				}
+				return null;
+			}
+		});
+
+		boolean z = lm.getMean(0) != null;
+		int p = names.length + 1;
+		byte[] nb = String.join("\n", names).getBytes(StandardCharsets.UTF_8);
+		WKBWriter wkb = new WKBWriter();
+		byte[][] wkbs = new byte[regions.length][];
+		long size = HEADER + pad(nb.length);
+		for( int j = 0; j < regions.length; j++ ) {
+			wkbs[j] = wkb.write(regions[j]);
+			size += 8L * p * (z ? 3 : 1) - (z ? 16 : 0) + 8 + pad(wkbs[j].length);
+		}
+		if( size > Integer.MAX_VALUE )
+			throw new IOException("Model too large: " + size + " bytes");
+
+		ByteBuffer b = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(MAGIC).putInt(VERSION).putInt(regions.length).putInt(p).putInt(z ? 1 : 0).putInt(nb.length).putLong(0);
+		b.put(nb).position(HEADER + pad(nb.length));
+		for( int j = 0; j < regions.length; j++ ) {
+			for( double d : lm.getBeta(j) )
+				b.putDouble(d);
+			if( z ) {
+				for( double d : lm.getMean(j) )
+					b.putDouble(d);
+				for( double d : lm.getSd(j) )
+					b.putDouble(d);
+			}
+			b.putLong(wkbs[j].length);
+			b.put(wkbs[j]);
+			b.position(b.position() - wkbs[j].length + pad(wkbs[j].length));
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(fn, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel fc = raf.getChannel();
+			b.flip();
+			while( b.hasRemaining() )
+				fc.write(b);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static Predictor read( File fn ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fn, "r");
+		ByteBuffer b;
+		try {
+			b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close(); // mapping stays valid
+		}
+		if( b.getInt(0) != MAGIC || b.getInt(4) != VERSION )
+			throw new IOException("Not a model file of version " + VERSION + ": " + fn);
+		int k = b.getInt(8), p = b.getInt(12);
+		boolean z = b.getInt(16) != 0;
+		byte[] nb = new byte[b.getInt(20)];
+		b.position(HEADER);
+		b.get(nb);
+		String[] names = nb.length == 0 ? new String[0] : new String(nb, StandardCharsets.UTF_8).split("\n", -1);
+		if( names.length != p - 1 )
+			throw new IOException("Expected " + (p - 1) + " names, got " + names.length);
+		b.position(HEADER + pad(nb.length));
+
+		double[][] betas = new double[k][p], means = z ? new double[k][p - 1] : null, sds = z ? new double[k][p - 1] : null;
+		Geometry[] regions = new Geometry[k];
+		WKBReader wkb = new WKBReader();
+		try {
+			for( int j = 0; j < k; j++ ) {
+				b.asDoubleBuffer().get(betas[j]);
+				b.position(b.position() + 8 * p);
+				if( z ) {
+					b.asDoubleBuffer().get(means[j]);
+					b.position(b.position() + 8 * (p - 1));
+					b.asDoubleBuffer().get(sds[j]);
+					b.position(b.position() + 8 * (p - 1));
+				}
+				byte[] g = new byte[(int) b.getLong()];
+				b.get(g);
+				b.position(b.position() - g.length + pad(g.length));
+				regions[j] = wkb.read(g);
+			}
+		} catch (ParseException e) {
+			throw new IOException(e);
+		}
+		return new Predictor(names, betas, means, sds, regions);
+	}
+
+	private static int pad( int len ) {
+		return (len + 7) & ~7;
+	}
+}
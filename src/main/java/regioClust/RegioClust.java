@@ -1,28 +1,21 @@
 package regioClust;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
 import com.beust.jcommander.JCommander;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
 
-import regioClust.Clustering.HierarchicalClusteringType;
-import regioClust.Clustering.TreeNode;
 
 public class RegioClust {
 
@@ -43,12 +36,27 @@ public class RegioClust {
 
 		File data = new File(params.inshape);
 
-		SpatialDataFrame sdf = DataUtils.readSpatialDataFrameFromShapefile(data, new int[] { 1, 2 }, true);
+		// only the columns of the model and the coordinates are loaded, indices refer to these from here on
+		TreeSet<Integer> used = new TreeSet<>(params.indep);
+		used.add(params.dep);
+		if (params.coords != null)
+			used.addAll(params.coords);
+		int[] cols = new int[used.size()];
+		Iterator<Integer> it = used.iterator();
+		for (int i = 0; i < cols.length; i++)
+			cols[i] = it.next();
+
+		SpatialDataFrame sdf = DataUtils.readSpatialDataFrameFromShapefile(data, new int[] { 1, 2 }, cols, threads, true);
+		// NULL values are read as NaN, but the models need all values
+		for (int i = 0; i < cols.length; i++)
+			for (int r = 0; r < sdf.size(); r++)
+				if (Double.isNaN(sdf.columns[i][r]))
+					throw new RuntimeException("NULL value of " + sdf.names.get(i) + " in record " + r);
 
 		int[] fa = new int[params.indep.size()];
 		for (int i = 0; i < params.indep.size(); i++)
-			fa[i] = params.indep.get(i);
-		int ta = params.dep;
+			fa[i] = Arrays.binarySearch(cols, params.indep.get(i));
+		int ta = Arrays.binarySearch(cols, params.dep);
 
 		for (int i = 0; i < fa.length; i++)
 			log.debug("fa " + i + ": " + sdf.names.get(fa[i]));
@@ -58,278 +66,226 @@ public class RegioClust {
 		if (params.coords != null) {
 			int[] ga = new int[params.coords.size()];
 			for (int i = 0; i < params.coords.size(); i++)
-				ga[i] = params.coords.get(i);
+				ga[i] = Arrays.binarySearch(cols, params.coords.get(i));
 			gDist = new EuclideanDist(ga);
 		} else if (params.inweight != null) {
 			try {
-				gDist = new DistMapDist<>(GeoUtils.readDistMatrixKeyValue(sdf.samples, new File(params.inweight)));
+				gDist = GeoUtils.readDist(sdf.getSamples(), new File(params.inweight), threads, params.offHeap);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		} else
 			throw new RuntimeException("No distance matrix NOR indices of Euclidean coordinates are given.");
 
-		Map<double[], Set<double[]>> cm = null;
+		int[][] cm = null;
 		if (params.incont != null) {
-			cm = GeoUtils.readContiguityKeyValue(sdf.samples, new File(params.incont));
+			cm = GeoUtils.readContiguity(sdf.size(), new File(params.incont), threads);
 		} else {
 			log.info("No contiguity matrix given. Creating one...");
-			cm = GeoUtils.getContiguityMap(sdf.samples, sdf.geoms, false, false);
+			if (params.knn != null) {
+				if (params.coords != null)
+					cm = GeoUtils.getKNNContiguityMap(sdf.getRows(((EuclideanDist) gDist).getIdx()), null, params.knn, false, threads);
+				else {
+					List<double[]> centroids = new ArrayList<double[]>();
+					for (Geometry g : sdf.geoms) {
+						Point c = g.getCentroid();
+						centroids.add(new double[] { c.getX(), c.getY() });
+					}
+					cm = GeoUtils.getKNNContiguityMap(centroids, null, params.knn, false, threads);
+				}
+			} else if (params.snap != null)
+				cm = GeoUtils.getContiguityMapFromBoundaries(sdf.geoms, params.rook, false, params.snap);
+			else
+				cm = GeoUtils.getContiguityMap(sdf.geoms, params.rook, false, threads);
 			log.info("Saving the contiguity matrix to distmap.wgt");
-			GeoUtils.writeContiguityKeyValue(cm, sdf.samples, new File("contmap.ctg"));
+			GeoUtils.writeContiguityKeyValue(cm, new File("contmap.ctg"));
 		}
 
 		int minObs = params.minObs;
 
-		Map<TreeNode, Set<TreeNode>> cma = Clustering.samplesCMtoTreeCM(cm);
-		List<TreeNode> treeNodes = new ArrayList<TreeNode>(Clustering.getNodes(cma));
+		// both steps add their merges to the same tree, leaves are rows
+		Dendrogram tree = new Dendrogram(sdf.size());
 
 		log.info("Step 1...");
-		List<TreeNode> curLayer = Clustering.getHierarchicalClusterTree(treeNodes, cma, gDist, HierarchicalClusteringType.ward, minObs, threads);
-		curLayer = Clustering.cutTree(curLayer, 1);
-		log.debug("Done. Remaining cluster :"+curLayer.size() );
+		log.debug("Linkage: " + params.linkage);
+		double[][] gCols = gDist instanceof EuclideanDist && ((EuclideanDist) gDist).getIdx() != null ? sdf.getColumns(((EuclideanDist) gDist).getIdx()) : null;
+		int[] curLayer = Clustering.getHierarchicalClusterTree(gCols != null ? null : sdf.getSamples(), gCols, tree, tree.getLeaves(), cm, gDist, params.linkage, minObs, threads, params.maxCosts);
+		log.debug("Done. Remaining cluster :"+curLayer.length );
 
 		log.info("Step 2...");
-		Map<TreeNode, Set<TreeNode>> ncm = getCMforCurLayer(curLayer, cm);
-		List<TreeNode> tree = getFunctionalClusterinTree(curLayer, ncm, fa, ta, threads);
+		int[][] ncm = Clustering.getLayerContiguity(tree, curLayer, cm);
+		int[] roots = getFunctionalClusterinTree(sdf.getColumns(fa), sdf.columns[ta], tree, curLayer, ncm, threads);
 		log.info("Done.");
 
-		List<Set<double[]>> ct = Clustering.treeToCluster(Clustering.cutTree(tree, params.nrCluster));
-		LinearModel lm = new LinearModel(sdf.samples, ct, fa, ta, false);
-		double mse = SupervisedUtils.getMSE(lm.getPredictions(sdf.samples, fa), sdf.samples, ta);
-		double aic = SupervisedUtils.getAICc_GWMODEL(mse, ct.size() * (fa.length + 1), sdf.samples.size());
-		double bic = SupervisedUtils.getBIC(mse, ct.size() * (fa.length + 1), sdf.samples.size());
-		double r2 = SupervisedUtils.getR2(lm.getPredictions(sdf.samples, fa), sdf.samples, ta);
+		if (params.outcurve != null) {
+			int n = sdf.size();
+			double[][] xi = Arrays.copyOf(sdf.getColumns(fa), fa.length + 1);
+			xi[fa.length] = new double[n];
+			Arrays.fill(xi[fa.length], 1.0);
+			double rootRSS = 0;
+			for (int root : roots)
+				rootRSS += new GramStats(xi, sdf.columns[ta], tree.getContents(root)).getRSS();
+			double[] rss = getRSSCurve(tree, roots, rootRSS, curLayer.length);
+
+			double mean = 0, tss = 0;
+			for (double y : sdf.columns[ta])
+				mean += y / n;
+			for (double y : sdf.columns[ta])
+				tss += (y - mean) * (y - mean);
+
+			try (BufferedWriter w = new BufferedWriter(new FileWriter(params.outcurve))) {
+				w.write("k,rss,mse,r2,aicc,bic\n");
+				for (int k = roots.length; k < rss.length; k++) {
+					double mse = rss[k] / n;
+					int nrParams = k * (fa.length + 1);
+					double aic = n - nrParams - 2 > 0 ? SupervisedUtils.getAICc_GWMODEL(mse, nrParams, n) : Double.NaN;
+					double bic = SupervisedUtils.getBIC(mse, nrParams, n);
+					w.write(k + "," + rss[k] + "," + mse + "," + (1.0 - rss[k] / tss) + "," + aic + "," + bic + "\n");
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			log.info("Written " + params.outcurve + ", k = " + roots.length + ".." + curLayer.length);
+		}
+
+		List<int[]> ct = Clustering.treeToCluster(tree, tree.cutTree(params.nrCluster));
+		LinearModel lm = new LinearModel(sdf.columns, ct, fa, ta, false);
+		LinearModel.Fit fit = lm.getFit(threads);
+		double mse = fit.mse;
+		double aic = SupervisedUtils.getAICc_GWMODEL(mse, ct.size() * (fa.length + 1), sdf.size());
+		double bic = SupervisedUtils.getBIC(mse, ct.size() * (fa.length + 1), sdf.size());
+		double r2 = fit.r2;
 
 		log.info("#Cluster: " + lm.cluster.size());
-		log.info("RSS: " + lm.getRSS());
+		log.info("RSS: " + fit.rss);
 		log.info("R2: " + r2);
 		log.info("AICc: " + aic);
 		log.info("BIC: " + bic);
 		log.info("MSE: " + mse);
 
-		if (params.outshape != null) {
-			List<double[]> l = new ArrayList<double[]>();
-			for (double[] d : sdf.samples) {
-				double[] ns = new double[3 + fa.length + 1];
-
-				int i = sdf.samples.indexOf(d);
-				ns[0] = lm.getResiduals().get(i);
-
-				for (int j = 0; j < lm.cluster.size(); j++) {
-					if (!lm.cluster.get(j).contains(d))
-						continue;
-
-					ns[1] = j; // cluster
-
-					double[] beta = lm.getBeta(j);
-					for (int k = 0; k < beta.length; k++)
-						ns[2 + k] = beta[k];
-					break;
-				}
-				l.add(ns);
+		if (params.outmodel != null) {
+			long time = System.currentTimeMillis();
+			String[] names = new String[fa.length];
+			for (int i = 0; i < fa.length; i++)
+				names[i] = sdf.names.get(fa[i]);
+			try {
+				Predictor.write(new File(params.outmodel), lm, sdf.geoms, names, threads);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
+			log.debug("Written " + params.outmodel + " in " + (System.currentTimeMillis() - time) + "ms");
+		}
 
-			String[] names = new String[2 + fa.length + 1];
+		if (params.outshape != null) {
+			// residual, cluster, coefficients, their standard errors, t- and p-values, RSS of the cluster
+			int nb = fa.length + 1;
+			String[] names = new String[2 + 4 * nb + 1];
 			names[0] = "residual";
 			names[1] = "cluster";
-			for (int i = 0; i < fa.length; i++)
-				names[2 + i] = sdf.names.get(fa[i]);
-			names[names.length - 1] = "Intrcpt";
-
-			DataUtils.writeShape(l, sdf.geoms, names, sdf.crs, params.outshape);
-		}
-	}
-
-	public static List<TreeNode> getFunctionalClusterinTree(List<TreeNode> leafLayer, Map<TreeNode, Set<TreeNode>> cm,
-			int[] fa, int ta, int threads) {
-
-		class FlatSet<T> extends HashSet<T> {
-			private static final long serialVersionUID = -1960947872875758352L;
-			public int hashCode = 0;
-
-			@Override
-			public boolean add(T t) {
-				hashCode += t.hashCode();
-				return super.add(t);
-			}
-
-			@Override
-			public boolean addAll(Collection<? extends T> c) {
-				hashCode += c.hashCode();
-				return super.addAll(c);
-			}
-
-			@Override
-			public int hashCode() {
-				return hashCode;
+			for (int i = 0; i < nb; i++) {
+				names[2 + i] = i < fa.length ? sdf.names.get(fa[i]) : "Intrcpt";
+				// by index of the coefficient, names of variables may have the same first characters
+				names[2 + nb + i] = "b" + i + "_se";
+				names[2 + 2 * nb + i] = "b" + i + "_t";
+				names[2 + 3 * nb + i] = "b" + i + "_p";
 			}
-		}
-
-		Map<TreeNode, Set<double[]>> curLayer = new HashMap<>();
-		int age = 0;
-		for (TreeNode tn : leafLayer) {
-			age = Math.max(age, tn.age);
-
-			Set<double[]> content = Clustering.getContents(tn);
-			curLayer.put(tn, content);
-		}
-
-		// copy of connected map
-		final Map<TreeNode, Set<TreeNode>> connected = new HashMap<TreeNode, Set<TreeNode>>();
-		if (cm != null)
-			for (Entry<TreeNode, Set<TreeNode>> e : cm.entrySet())
-				connected.put(e.getKey(), new HashSet<TreeNode>(e.getValue()));
-
-		Map<TreeNode, Double> ssCache = new HashMap<TreeNode, Double>();
-		for (Entry<TreeNode, Set<double[]>> e : curLayer.entrySet()) {
-			List<Set<double[]>> sc1 = new ArrayList<>();
-			sc1.add(e.getValue());
-			double rss1 = new LinearModel(new ArrayList<>(e.getValue()), sc1, fa, ta, false).getRSS();
-			ssCache.put(e.getKey(), rss1);
-		}
-		Map<TreeNode, Map<TreeNode, Double>> unionCache = new ConcurrentHashMap<>();
-
-		while (curLayer.size() > 1) {
-
-			List<TreeNode> cl = new ArrayList<>(curLayer.keySet());
-
-			ExecutorService es = Executors.newFixedThreadPool(threads);
-			List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
-			for (int t = 0; t < threads; t++) {
-				final int T = t;
-
-				futures.add(es.submit(new Callable<double[]>() {
-					@Override
-					public double[] call() throws Exception {
-						int c1 = -1, c2 = -1;
-						double minCost = Double.POSITIVE_INFINITY;
-
-						for (int i = T; i < cl.size() - 1; i += threads) {
-							TreeNode l1 = cl.get(i);
-
-							if (!connected.containsKey(l1))
-								continue;
-							Set<TreeNode> nbs = connected.get(l1);
-
-							for (int j = i + 1; j < cl.size(); j++) {
-								TreeNode l2 = cl.get(j);
-
-								if (!nbs.contains(l2)) // disjoint
-									continue;
-
-								Set<double[]> s1 = curLayer.get(l1);
-								Set<double[]> s2 = curLayer.get(l2);
-
-								if (!unionCache.containsKey(l1) || !unionCache.get(l1).containsKey(l2)) {
-									List<double[]> l = new ArrayList<>();
-									l.addAll(s1);
-									l.addAll(s2);
-
-									List<Set<double[]>> sc3 = new ArrayList<>();
-									Set<double[]> s = new HashSet<>();
-									s.addAll(s1);
-									s.addAll(s2);
-									sc3.add(s);
-
-									double rssFull = new LinearModel(l, sc3, fa, ta, false).getRSS();
-									if (!unionCache.containsKey(l1))
-										unionCache.put(l1, new HashMap<TreeNode, Double>());
-									unionCache.get(l1).put(l2, rssFull);
-								}
-								double cost = unionCache.get(l1).get(l2) - (ssCache.get(l1) + ssCache.get(l2));
-
-								if (cost < minCost) {
-									c1 = i;
-									c2 = j;
-									minCost = cost;
-								}
-							}
+			names[names.length - 1] = "clRSS";
+			LinearModel.Inference inf = lm.getInference(threads);
+
+			// one pass over the rows, each one is written as soon as it is assembled
+			long time = System.currentTimeMillis();
+			int[] labels = lm.getLabels();
+			double[] ns = new double[names.length];
+			try (ResultWriter w = ResultWriter.create(params.outshape, names, sdf.geoms.get(0), sdf.crs)) {
+				for (int i = 0; i < sdf.size(); i++) {
+					Arrays.fill(ns, 0);
+					ns[0] = fit.residuals[i];
+
+					int j = labels[i];
+					if (j >= 0) {
+						ns[1] = j; // cluster
+
+						double[] beta = lm.getBeta(j);
+						for (int k = 0; k < beta.length; k++) {
+							ns[2 + k] = beta[k];
+							ns[2 + nb + k] = inf.se[j][k];
+							ns[2 + 2 * nb + k] = inf.t[j][k];
+							ns[2 + 3 * nb + k] = inf.p[j][k];
 						}
-						return new double[] { c1, c2, minCost };
+						ns[names.length - 1] = inf.rss[j];
 					}
-				}));
+					w.write(ns, sdf.geoms.get(i));
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e); // no "Written" for a partly written file
 			}
-			es.shutdown();
+			log.debug("Written " + params.outshape + " in " + (System.currentTimeMillis() - time) + "ms");
+		}
+	}
 
-			TreeNode c1 = null, c2 = null;
-			double sMin = Double.POSITIVE_INFINITY;
-			try {
-				for (Future<double[]> f : futures) {
-					double[] d = f.get();
+	// RSS of the cuts of the tree of step 2 into k = 0..maxK clusters, NaN if k < #roots. Undoing a merge of step 2 lowers the
+	// RSS by its cost, so every cut follows from the RSS of the roots and the costs of the youngest merges, O(maxK).
+	// maxK: at most the size of the layer step 2 started from
+	public static double[] getRSSCurve(Dendrogram tree, int[] roots, double rootRSS, int maxK) {
+		double[] r = new double[maxK + 1];
+		Arrays.fill(r, Double.NaN);
+		double rss = rootRSS;
+		int node = tree.getNodeCount() - 1;
+		for (int k = roots.length; k <= maxK; k++) {
+			if (k > roots.length)
+				rss -= tree.getCost(node--);
+			r[k] = Math.max(0, rss);
+		}
+		return r;
+	}
 
-					if (d[0] >= 0 && (c1 == null || d[2] < sMin)) {
-						c1 = cl.get((int) d[0]);
-						c2 = cl.get((int) d[1]);
-						sMin = d[2];
-					}
+	// Merges the clusters of layer (nodes of tree) by the increase of the RSS of their linear models, merge nodes are added to tree.
+	// cm: neighbour lists of indices into layer
+	//@return roots of one or more trees
+	// x: columns of the independent variables, y: dependent variable, see DataFrame.getColumns()
+	public static int[] getFunctionalClusterinTree(double[][] x, final double[] y, final Dendrogram tree, final int[] layer, int[][] cm,
+			int threads) {
+
+		// clusters are represented by their X'X, X'y, y'y and n only, by node id
+		final GramStats[] stats = new GramStats[tree.getCapacity()];
+		final double[] rss = new double[tree.getCapacity()];
+
+		// a column of ones for the intercept, last
+		final double[][] xi = Arrays.copyOf(x, x.length + 1);
+		xi[x.length] = new double[y.length];
+		Arrays.fill(xi[x.length], 1.0);
+
+		final int chunks = threads * ParallelUtils.CHUNKS_PER_THREAD;
+		tree.getOrder(); // build once before reading contents concurrently
+		ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(layer.length, chunks), new ParallelUtils.RangeCallable<Void>() {
+			@Override
+			public Void call(int from, int to) {
+				for (int i = from; i < to; i++) {
+					stats[layer[i]] = new GramStats(xi, y, tree.getContents(layer[i]));
+					rss[layer[i]] = stats[layer[i]].getRSS();
 				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException e) {
-				e.printStackTrace();
+				return null;
 			}
+		});
 
-			if (c1 == null && c2 == null) {
-				log.debug("Cannot merge further: " + curLayer.size());
-				return new ArrayList<>(curLayer.keySet());
+		return Clustering.agglomerate(tree, layer, cm, new Clustering.MergeCriterion() {
+			@Override
+			public boolean isMergeable(int a, int b) {
+				return true;
 			}
 
-			// create merge node, remove c1,c2
-			Set<double[]> union = new FlatSet<double[]>();
-			union.addAll(curLayer.remove(c1));
-			union.addAll(curLayer.remove(c2));
-
-			TreeNode mergeNode = new TreeNode(++age, sMin);
-			mergeNode.children = Arrays.asList(new TreeNode[] { c1, c2 });
-
-			{
-				ssCache.remove(c1);
-				ssCache.remove(c2);
-				ssCache.put(mergeNode, unionCache.get(c1).get(c2));
-				unionCache.remove(c1);
+			@Override
+			public double getCost(int a, int b) {
+				// RSS of the union from summed statistics, no pass over the observations
+				return stats[a].getRSS(stats[b]) - (rss[a] + rss[b]);
 			}
 
-			// add nodes
-			curLayer.put(mergeNode, union);
-
-			// update connected map
-			if (connected != null) {
-				// 1. merge values of c1 and c2 and put union
-				Set<TreeNode> ns = connected.remove(c1);
-				ns.addAll(connected.remove(c2));
-				connected.put(mergeNode, ns);
-
-				// 2. replace all values c1,c2 by merged node
-				for (Set<TreeNode> s : connected.values()) {
-					if (s.contains(c1) || s.contains(c2)) {
-						s.remove(c1);
-						s.remove(c2);
-						s.add(mergeNode);
-					}
-				}
+			@Override
+			public void merge(int a, int b, int m, double cost) {
+				stats[m] = stats[a].merge(stats[b]);
+				rss[m] = stats[m].getRSS();
+				stats[a] = stats[b] = null;
 			}
-		}
-		return new ArrayList<>(curLayer.keySet());
+		}, threads);
 	}
-
-	public static Map<TreeNode, Set<TreeNode>> getCMforCurLayer(Collection<TreeNode> curLayer,
-			Map<double[], Set<double[]>> cma) {
-		Map<TreeNode, Set<double[]>> cont = new HashMap<>();
-		for (TreeNode tn : curLayer)
-			cont.put(tn, Clustering.getContents(tn));
-
-		Map<TreeNode, Set<TreeNode>> ncm = new HashMap<>();
-		for (TreeNode tnA : curLayer) {
-			Set<TreeNode> s = new HashSet<>();
-			for (double[] a : cont.get(tnA))
-				for (double[] nb : cma.get(a))
-					for (TreeNode tnB : curLayer)
-						if (cont.get(tnB).contains(nb))
-							s.add(tnB);
-			ncm.put(tnA, s);
-		}
-		return ncm;
-	}
-
 }
@@ -0,0 +1,270 @@
+package regioClust;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.geotools.data.DataStore;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+// Writes rows of values and their geometries one at a time, nothing is collected in memory. Shapefiles are written
+// in one transaction, CSV (row id and values, no geometries) and GeoJSON have no limits on size and names.
+public abstract class ResultWriter implements Closeable {
+
+	private static Logger log = Logger.getLogger(ResultWriter.class);
+
+	protected final String[] names;
+
+	protected ResultWriter( String[] names ) {
+		this.names = names;
+	}
+
+	public abstract void write( double[] values, Geometry g ) throws IOException;
+
+	// by extension of fn: .csv, .json/.geojson (may be gzipped) or else shapefile. geom: any geometry of the rows, for the type
+	public static ResultWriter create( String fn, String[] names, Geometry geom, CoordinateReferenceSystem crs ) throws IOException {
+		String l = fn.toLowerCase().replaceAll("\\.gz$", "");
+		if( l.endsWith(".csv") )
+			return new CSVWriter(fn, names);
+		if( l.endsWith(".json") || l.endsWith(".geojson") )
+			return new GeoJSONWriter(fn, names);
+		return new ShapeWriter(fn, names, geom, crs);
+	}
+
+	private static Writer open( String fn ) throws IOException {
+		OutputStream os = new FileOutputStream(fn);
+		if( fn.toLowerCase().endsWith(".gz") )
+			os = new GZIPOutputStream(os, 1 << 16);
+		return new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	public static class ShapeWriter extends ResultWriter {
+		private DataStore store;
+		private Transaction transaction;
+		private FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+		private Object[] attributes;
+		private boolean failed = false; // a write threw, so the transaction is rolled back on close
+
+		public ShapeWriter( String fn, String[] names, Geometry geom, CoordinateReferenceSystem crs ) throws IOException {
+			super(names);
+			SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+			typeBuilder.setName("samples");
+			for (int i = 0; i < names.length; i++) {
+				String n = names[i];
+				if (n.length() > 8)
+					n = n.substring(0, 8);
+				typeBuilder.add(n, Double.class);
+			}
+
+			if (crs != null)
+				typeBuilder.setCRS(crs);
+			else
+				log.warn("CRS not set!");
+
+			if (geom instanceof Polygon)
+				typeBuilder.add("the_geom", Polygon.class);
+			else if (geom instanceof MultiPolygon)
+				typeBuilder.add("the_geom", MultiPolygon.class);
+			else if (geom instanceof Point)
+				typeBuilder.add("the_geom", Point.class);
+			else if (geom instanceof MultiPoint)
+				typeBuilder.add("the_geom", MultiPoint.class);
+			else
+				throw new RuntimeException("Unkown geometry type!");
+			SimpleFeatureType type = typeBuilder.buildFeatureType();
+
+			Map map = Collections.singletonMap("url", new File(fn).toURI().toURL());
+			store = new ShapefileDataStoreFactory().createNewDataStore(map);
+			store.createSchema(type);
+			transaction = new DefaultTransaction("create");
+			writer = store.getFeatureWriterAppend(store.getTypeNames()[0], transaction);
+			attributes = new Object[names.length + 1];
+		}
+
+		@Override
+		public void write( double[] values, Geometry g ) throws IOException {
+			for( int i = 0; i < names.length; i++ )
+				attributes[i] = values[i];
+			attributes[names.length] = g;
+			boolean ok = false;
+			try {
+				writer.next().setAttributes(attributes);
+				writer.write();
+				ok = true;
+			} finally {
+				if( !ok )
+					failed = true;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				writer.close();
+				if( failed ) // no truncated shapefile
+					transaction.rollback();
+				else
+					transaction.commit();
+			} catch (IOException e) {
+				transaction.rollback();
+				throw e;
+			} finally {
+				transaction.close();
+				store.dispose();
+			}
+		}
+	}
+
+	public static class CSVWriter extends ResultWriter {
+		private Writer w;
+		private int row = 0;
+
+		public CSVWriter( String fn, String[] names ) throws IOException {
+			super(names);
+			w = open(fn);
+			w.write("id");
+			for( String n : names )
+				w.write("," + n);
+			w.write("\n");
+		}
+
+		@Override
+		public void write( double[] values, Geometry g ) throws IOException {
+			w.write(Integer.toString(row++));
+			for( int i = 0; i < names.length; i++ ) {
+				w.write(',');
+				w.write(Double.toString(values[i]));
+			}
+			w.write('\n');
+		}
+
+		@Override
+		public void close() throws IOException {
+			w.close();
+		}
+	}
+
+	public static class GeoJSONWriter extends ResultWriter {
+		private Writer w;
+		private StringBuilder sb = new StringBuilder();
+		private boolean first = true;
+
+		public GeoJSONWriter( String fn, String[] names ) throws IOException {
+			super(names);
+			w = open(fn);
+			w.write("{\"type\":\"FeatureCollection\",\"features\":[\n");
+		}
+
+		@Override
+		public void write( double[] values, Geometry g ) throws IOException {
+			sb.setLength(0);
+			if( !first )
+				sb.append(",\n");
+			first = false;
+			sb.append("{\"type\":\"Feature\",\"properties\":{");
+			for( int i = 0; i < names.length; i++ ) {
+				if( i > 0 )
+					sb.append(',');
+				sb.append('"').append(names[i].replace("\\", "\\\\").replace("\"", "\\\"")).append("\":");
+				// JSON has no NaN or infinity
+				sb.append(Double.isNaN(values[i]) || Double.isInfinite(values[i]) ? "null" : Double.toString(values[i]));
+			}
+			sb.append("},\"geometry\":");
+			appendGeometry(sb, g);
+			sb.append('}');
+			w.append(sb);
+		}
+
+		private static void appendGeometry( StringBuilder sb, Geometry g ) {
+			if( g == null ) {
+				sb.append("null");
+				return;
+			}
+			String type = g.getGeometryType();
+			sb.append("{\"type\":\"").append(type).append("\",\"coordinates\":");
+			if( g instanceof Point )
+				appendCoordinate(sb, g.getCoordinate());
+			else if( g instanceof LineString || g instanceof MultiPoint )
+				appendCoordinates(sb, g.getCoordinates());
+			else if( g instanceof Polygon )
+				appendPolygon(sb, (Polygon) g);
+			else if( g instanceof MultiPolygon ) {
+				sb.append('[');
+				for( int i = 0; i < g.getNumGeometries(); i++ ) {
+					if( i > 0 )
+						sb.append(',');
+					appendPolygon(sb, (Polygon) g.getGeometryN(i));
+				}
+				sb.append(']');
+			} else if( type.equals("MultiLineString") ) {
+				sb.append('[');
+				for( int i = 0; i < g.getNumGeometries(); i++ ) {
+					if( i > 0 )
+						sb.append(',');
+					appendCoordinates(sb, g.getGeometryN(i).getCoordinates());
+				}
+				sb.append(']');
+			} else
+				throw new RuntimeException("Unkown geometry type: " + type);
+			sb.append('}');
+		}
+
+		private static void appendPolygon( StringBuilder sb, Polygon p ) {
+			sb.append('[');
+			appendCoordinates(sb, p.getExteriorRing().getCoordinates());
+			for( int i = 0; i < p.getNumInteriorRing(); i++ ) {
+				sb.append(',');
+				appendCoordinates(sb, p.getInteriorRingN(i).getCoordinates());
+			}
+			sb.append(']');
+		}
+
+		private static void appendCoordinates( StringBuilder sb, Coordinate[] c ) {
+			sb.append('[');
+			for( int i = 0; i < c.length; i++ ) {
+				if( i > 0 )
+					sb.append(',');
+				appendCoordinate(sb, c[i]);
+			}
+			sb.append(']');
+		}
+
+		private static void appendCoordinate( StringBuilder sb, Coordinate c ) {
+			if( c == null )
+				sb.append("[]");
+			else
+				sb.append('[').append(c.x).append(',').append(c.y).append(']');
+		}
+
+		@Override
+		public void close() throws IOException {
+			w.write("\n]}\n");
+			w.close();
+		}
+	}
+}
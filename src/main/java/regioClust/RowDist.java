@@ -0,0 +1,6 @@
+package regioClust;
+
+// distance of samples given by their row ids
+public interface RowDist {
+	public double dist( int i, int j );
+}
@@ -0,0 +1,369 @@
+package regioClust;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+// Reads the records of shapefiles without going through features: only requested fields are decoded from the
+// fixed-width DBF records, geometries are decoded from the .shp records. Both are read in chunks of records that are
+// decoded in parallel. Geometries are built like geotools does, polygons as MultiPolygon and lines as MultiLineString.
+public class ShapeReader {
+
+	private static Logger log = Logger.getLogger(ShapeReader.class);
+
+	private static final int CHUNK_BYTES = 1 << 24; // max. bytes of one chunk of records
+
+	private static final GeometryFactory gf = new GeometryFactory();
+
+	public static class DbfField {
+		public String name;
+		public char type;
+		public int offset, length, decimals; // offset within a record
+	}
+
+	public static class DbfHeader {
+		public int records, headerLength, recordLength;
+		public List<DbfField> fields = new ArrayList<>();
+	}
+
+	// file of fn with another extension, the case of the extension may differ
+	public static File getSibling( File fn, String ext ) {
+		String base = fn.getPath().replaceAll("\\.[^./\\\\]*$", "");
+		File f = new File(base + "." + ext.toLowerCase());
+		return f.exists() ? f : new File(base + "." + ext.toUpperCase());
+	}
+
+	public static DbfHeader readDbfHeader( File dbf ) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dbf)));
+		try {
+			byte[] b = new byte[32];
+			in.readFully(b);
+			ByteBuffer bb = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+			DbfHeader h = new DbfHeader();
+			h.records = bb.getInt(4);
+			h.headerLength = bb.getShort(8) & 0xffff;
+			h.recordLength = bb.getShort(10) & 0xffff;
+
+			int offset = 1; // deletion flag
+			for( int pos = 32; pos + 32 < h.headerLength; pos += 32 ) {
+				in.readFully(b, 0, 1);
+				if( b[0] == 0x0d ) // end of field descriptors
+					break;
+				in.readFully(b, 1, 31);
+				DbfField f = new DbfField();
+				int len = 0;
+				while( len < 11 && b[len] != 0 )
+					len++;
+				f.name = new String(b, 0, len, "ISO-8859-1").trim();
+				f.type = (char) b[11];
+				f.length = b[16] & 0xff;
+				f.decimals = b[17] & 0xff;
+				f.offset = offset;
+				offset += f.length;
+				h.fields.add(f);
+			}
+			return h;
+		} finally {
+			in.close();
+		}
+	}
+
+	// Values of the fields (indices into the header's fields) of all records, by field. Blank values (NULL) are NaN.
+	// Records flagged as deleted are read like all others, since records of the .shp file are matched by position and
+	// have no such flag (as with geotools); a warning gives their number.
+	public static double[][] readDbf( File dbf, final int[] fields, int threads ) throws IOException {
+		final DbfHeader h = readDbfHeader(dbf);
+		final double[][] r = new double[fields.length][h.records];
+		final AtomicInteger deleted = new AtomicInteger();
+		final RandomAccessFile raf = new RandomAccessFile(dbf, "r");
+		try {
+			final FileChannel fc = raf.getChannel();
+			int chunks = (int) Math.max(threads * ParallelUtils.CHUNKS_PER_THREAD, (long) h.records * h.recordLength / CHUNK_BYTES + 1);
+			ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(h.records, chunks), new ParallelUtils.RangeCallable<Void>() {
+				@Override
+				public Void call( int from, int to ) {
+					byte[] b = read(fc, h.headerLength + (long) from * h.recordLength, (to - from) * h.recordLength);
+					int d = 0;
+					for( int o = 0; o < b.length; o += h.recordLength )
+						if( b[o] == '*' )
+							d++;
+					deleted.addAndGet(d);
+					
+					for( int k = 0; k < fields.length; k++ ) {
+						DbfField f = h.fields.get(fields[k]);
+						for( int i = from, o = f.offset; i < to; i++, o += h.recordLength )
+							try {
+								r[k][i] = isBlank(b, o, o + f.length) ? Double.NaN : KeyValueReader.parseDouble(b, o, o + f.length);
+							} catch (NumberFormatException e) {
+								throw new RuntimeException("Invalid value of " + f.name + " in record " + i + ": '" + new String(b, o, f.length).trim() + "'");
+							}
+					}
+					return null;
+				}
+			});
+		} finally {
+			raf.close();
+		}
+		if( deleted.get() > 0 )
+			log.warn(deleted.get() + " records of " + dbf + " are flagged as deleted, read anyway");
+		return r;
+	}
+	
+	private static boolean isBlank( byte[] b, int s, int e ) {
+		for( int i = s; i < e; i++ )
+			if( b[i] != ' ' && b[i] != 0 )
+				return false;
+		return true;
+	}
+
+	// geometries of all records, offsets of records from the .shx file if there is one
+	public static List<Geometry> readShp( File shp, int threads ) throws IOException {
+		final long[] offsets = readOffsets(shp);
+		final int n = offsets.length - 1; // last is end of file
+		final Geometry[] r = new Geometry[n];
+		final int fileType = readHeader(shp).getInt(32);
+
+		final RandomAccessFile raf = new RandomAccessFile(shp, "r");
+		try {
+			final FileChannel fc = raf.getChannel();
+			int chunks = (int) Math.max(threads * ParallelUtils.CHUNKS_PER_THREAD, (offsets[n] - offsets[0]) / CHUNK_BYTES + 1);
+			ParallelUtils.invokeAll(threads, ParallelUtils.getBounds(n, chunks), new ParallelUtils.RangeCallable<Void>() {
+				@Override
+				public Void call( int from, int to ) {
+					ByteBuffer b = ByteBuffer.wrap(read(fc, offsets[from], (int) (offsets[to] - offsets[from]))).order(ByteOrder.LITTLE_ENDIAN);
+					for( int i = from; i < to; i++ )
+						r[i] = decode(b, (int) (offsets[i] - offsets[from]) + 8, fileType);
+					return null;
+				}
+			});
+		} finally {
+			raf.close();
+		}
+		return Arrays.asList(r);
+	}
+
+	private static ByteBuffer readHeader( File shp ) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(shp));
+		try {
+			byte[] b = new byte[100];
+			in.readFully(b);
+			return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			in.close();
+		}
+	}
+
+	// start of each record and end of the last one
+	private static long[] readOffsets( File shp ) throws IOException {
+		File shx = getSibling(shp, "shx");
+		if( shx.exists() ) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(shx), 1 << 16));
+			try {
+				in.skipBytes(100);
+				int n = (int) ((shx.length() - 100) / 8);
+				long[] r = new long[n + 1];
+				r[n] = 100;
+				for( int i = 0; i < n; i++ ) {
+					r[i] = 2L * in.readInt(); // big endian, in 16 bit words
+					r[n] = r[i] + 8 + 2L * in.readInt();
+				}
+				return r;
+			} finally {
+				in.close();
+			}
+		}
+
+		// walk the record headers
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(shp), 1 << 16));
+		try {
+			in.skipBytes(100);
+			long[] r = new long[1024];
+			int n = 0;
+			long pos = 100;
+			while( true ) {
+				int len;
+				try {
+					in.readInt();
+					len = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if( n + 1 == r.length )
+					r = Arrays.copyOf(r, r.length * 2);
+				r[n++] = pos;
+				pos += 8 + 2L * len;
+				in.skipBytes(2 * len);
+			}
+			r[n] = pos;
+			return Arrays.copyOf(r, n + 1);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] read( FileChannel fc, long pos, int len ) {
+		ByteBuffer b = ByteBuffer.allocate(len);
+		try {
+			while( b.hasRemaining() )
+				if( fc.read(b, pos + b.position()) < 0 )
+					throw new EOFException("Unexpected end of file at " + (pos + b.position()));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return b.array();
+	}
+
+	// record content at o, fileType for empty geometries of null shapes
+	static Geometry decode( ByteBuffer b, int o, int fileType ) {
+		int type = b.getInt(o);
+		switch( type ) {
+		case 0:
+			return empty(fileType);
+		case 1: case 11: case 21: {
+			Coordinate c = new Coordinate(b.getDouble(o + 4), b.getDouble(o + 12));
+			if( type == 11 )
+				c.z = b.getDouble(o + 20);
+			return gf.createPoint(c);
+		}
+		case 8: case 18: case 28: {
+			int np = b.getInt(o + 36);
+			return gf.createMultiPoint(readPoints(b, o + 40, 0, np, np, type == 18));
+		}
+		case 3: case 13: case 23:
+		case 5: case 15: case 25: {
+			int nparts = b.getInt(o + 36), np = b.getInt(o + 40);
+			int po = o + 44 + 4 * nparts;
+			Coordinate[][] parts = new Coordinate[nparts][];
+			for( int k = 0; k < nparts; k++ ) {
+				int s = b.getInt(o + 44 + 4 * k), e = k + 1 < nparts ? b.getInt(o + 48 + 4 * k) : np;
+				parts[k] = readPoints(b, po, s, e, np, type == 13 || type == 15);
+			}
+			return type % 10 == 3 ? toMultiLineString(parts) : toMultiPolygon(parts);
+		}
+		default:
+			throw new RuntimeException("Unsupported shape type: " + type);
+		}
+	}
+
+	// points [s,e) of the np points at po, z values follow the points and their range
+	private static Coordinate[] readPoints( ByteBuffer b, int po, int s, int e, int np, boolean z ) {
+		Coordinate[] c = new Coordinate[e - s];
+		for( int i = s; i < e; i++ ) {
+			c[i - s] = new Coordinate(b.getDouble(po + 16 * i), b.getDouble(po + 16 * i + 8));
+			if( z )
+				c[i - s].z = b.getDouble(po + 16 * np + 16 + 8 * i);
+		}
+		return c;
+	}
+
+	private static Geometry empty( int fileType ) {
+		switch( fileType % 10 ) {
+		case 1:
+			return gf.createPoint((Coordinate) null);
+		case 8:
+			return gf.createMultiPoint(new Coordinate[0]);
+		case 3:
+			return gf.createMultiLineString(new LineString[0]);
+		default:
+			return gf.createMultiPolygon(new Polygon[0]);
+		}
+	}
+
+	private static Geometry toMultiLineString( Coordinate[][] parts ) {
+		LineString[] l = new LineString[parts.length];
+		for( int k = 0; k < parts.length; k++ )
+			l[k] = gf.createLineString(parts[k].length == 1 ? new Coordinate[] { parts[k][0], parts[k][0] } : parts[k]);
+		return gf.createMultiLineString(l);
+	}
+
+	// Clockwise rings are shells, counter-clockwise ones holes. A hole belongs to the smallest shell that contains it,
+	// holes without a shell become shells themselves.
+	static Geometry toMultiPolygon( Coordinate[][] parts ) {
+		List<Coordinate[]> shells = new ArrayList<>(), holes = new ArrayList<>();
+		for( Coordinate[] c : parts ) {
+			if( c.length > 0 && !c[0].equals2D(c[c.length - 1]) ) { // close ring
+				c = Arrays.copyOf(c, c.length + 1);
+				c[c.length - 1] = new Coordinate(c[0]);
+			}
+			if( c.length < 4 )
+				continue;
+			if( CGAlgorithms.isCCW(c) )
+				holes.add(c);
+			else
+				shells.add(c);
+		}
+		if( shells.isEmpty() ) {
+			shells = holes;
+			holes = new ArrayList<>();
+		}
+
+		double[][] env = new double[shells.size()][];
+		for( int k = 0; k < shells.size(); k++ )
+			env[k] = getEnvelope(shells.get(k));
+		List<List<LinearRing>> shellHoles = new ArrayList<>();
+		for( int k = 0; k < shells.size(); k++ )
+			shellHoles.add(new ArrayList<LinearRing>());
+		for( Coordinate[] h : holes ) {
+			int best = -1;
+			if( shells.size() == 1 )
+				best = 0;
+			else {
+				double[] he = getEnvelope(h);
+				for( int k = 0; k < shells.size(); k++ ) {
+					double[] e = env[k];
+					if( e[0] <= he[0] && e[1] <= he[1] && e[2] >= he[2] && e[3] >= he[3] && CGAlgorithms.isPointInRing(h[0], shells.get(k))
+							&& (best < 0 || getArea(e) < getArea(env[best])) )
+						best = k;
+				}
+			}
+			if( best >= 0 )
+				shellHoles.get(best).add(gf.createLinearRing(h));
+			else {
+				shells.add(h);
+				shellHoles.add(new ArrayList<LinearRing>());
+			}
+		}
+
+		Polygon[] p = new Polygon[shells.size()];
+		for( int k = 0; k < p.length; k++ )
+			p[k] = gf.createPolygon(gf.createLinearRing(shells.get(k)), shellHoles.get(k).toArray(new LinearRing[0]));
+		return gf.createMultiPolygon(p);
+	}
+
+	// minx, miny, maxx, maxy
+	private static double[] getEnvelope( Coordinate[] c ) {
+		double[] e = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for( Coordinate p : c ) {
+			e[0] = Math.min(e[0], p.x);
+			e[1] = Math.min(e[1], p.y);
+			e[2] = Math.max(e[2], p.x);
+			e[3] = Math.max(e[3], p.y);
+		}
+		return e;
+	}
+
+	private static double getArea( double[] e ) {
+		return (e[2] - e[0]) * (e[3] - e[1]);
+	}
+}
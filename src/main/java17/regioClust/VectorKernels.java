@@ -0,0 +1,94 @@
+package regioClust;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Kernels by the Vector API (incubating), selected by Kernels if module jdk.incubator.vector is available. Rows are
+// gathered through their index arrays, partial sums are kept per lane and added at the end. Loops shorter than
+// MIN_LENGTH (e.g. 2 coordinates, a Gram matrix row of a few coefficients) stay scalar.
+class VectorKernels implements Kernels.Impl {
+
+	private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+	private static final int MIN_LENGTH = 2 * S.length();
+
+	private final Kernels.Scalar scalar = new Kernels.Scalar();
+
+	@Override
+	public double squaredDistance( double[] a, int oa, double[] b, int ob, int[] idx ) {
+		if( idx.length < MIN_LENGTH )
+			return scalar.squaredDistance(a, oa, b, ob, idx);
+		DoubleVector acc = DoubleVector.zero(S);
+		int i = 0;
+		for( int bound = S.loopBound(idx.length); i < bound; i += S.length() ) {
+			DoubleVector d = DoubleVector.fromArray(S, a, oa, idx, i).sub(DoubleVector.fromArray(S, b, ob, idx, i));
+			acc = d.fma(d, acc);
+		}
+		double s = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i < idx.length; i++ ) {
+			double d = a[idx[i] + oa] - b[idx[i] + ob];
+			s += d * d;
+		}
+		return s;
+	}
+
+	@Override
+	public double squaredDistance( double[] a, int oa, double[] b, int ob, int length ) {
+		if( length < MIN_LENGTH )
+			return scalar.squaredDistance(a, oa, b, ob, length);
+		DoubleVector acc = DoubleVector.zero(S);
+		int i = 0;
+		for( int bound = S.loopBound(length); i < bound; i += S.length() ) {
+			DoubleVector d = DoubleVector.fromArray(S, a, oa + i).sub(DoubleVector.fromArray(S, b, ob + i));
+			acc = d.fma(d, acc);
+		}
+		double s = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i < length; i++ ) {
+			double d = a[i + oa] - b[i + ob];
+			s += d * d;
+		}
+		return s;
+	}
+
+	@Override
+	public double sum( double[] x, int[] rows ) {
+		if( rows.length < MIN_LENGTH )
+			return scalar.sum(x, rows);
+		DoubleVector acc = DoubleVector.zero(S);
+		int i = 0;
+		for( int bound = S.loopBound(rows.length); i < bound; i += S.length() )
+			acc = acc.add(DoubleVector.fromArray(S, x, 0, rows, i));
+		double s = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i < rows.length; i++ )
+			s += x[rows[i]];
+		return s;
+	}
+
+	@Override
+	public double dot( double[] x, double[] y, int[] rows ) {
+		if( rows.length < MIN_LENGTH )
+			return scalar.dot(x, y, rows);
+		DoubleVector acc = DoubleVector.zero(S);
+		int i = 0;
+		for( int bound = S.loopBound(rows.length); i < bound; i += S.length() )
+			acc = DoubleVector.fromArray(S, x, 0, rows, i).fma(DoubleVector.fromArray(S, y, 0, rows, i), acc);
+		double s = acc.reduceLanes(VectorOperators.ADD);
+		for( ; i < rows.length; i++ )
+			s += x[rows[i]] * y[rows[i]];
+		return s;
+	}
+
+	@Override
+	public void axpy( double alpha, double[] x, double[] y ) {
+		if( x.length < MIN_LENGTH ) {
+			scalar.axpy(alpha, x, y);
+			return;
+		}
+		DoubleVector a = DoubleVector.broadcast(S, alpha);
+		int i = 0;
+		for( int bound = S.loopBound(x.length); i < bound; i += S.length() )
+			DoubleVector.fromArray(S, x, i).fma(a, DoubleVector.fromArray(S, y, i)).intoArray(y, i);
+		for( ; i < x.length; i++ )
+			y[i] += alpha * x[i];
+	}
+}
@@ -0,0 +1,117 @@
+package regioClust;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CSRMatrixTest {
+
+	private static final int N = 300, BAND = 5;
+
+	private final List<double[]> samples = new ArrayList<>();
+	private final File csv;
+
+	// both directions of the pairs within BAND rows of each other, in random order
+	public CSRMatrixTest() throws IOException {
+		for( int i = 0; i < N; i++ )
+			samples.add(new double[] { i });
+		Random r = new Random(7);
+		List<String> lines = new ArrayList<>();
+		for( int i = 0; i < N; i++ )
+			for( int j = Math.max(0, i - BAND); j < Math.min(N, i + BAND + 1); j++ )
+				if( i < j ) {
+					double d = r.nextDouble() * 100;
+					lines.add(i + "," + j + "," + d);
+					lines.add(j + "," + i + "," + d);
+				}
+		Collections.shuffle(lines, r);
+		csv = tempFile(".csv");
+		FileWriter fw = new FileWriter(csv);
+		fw.write("id1,id2,dist\n");
+		for( String l : lines )
+			fw.write(l + "\n");
+		fw.close();
+	}
+
+	private static File tempFile( String suffix ) throws IOException {
+		File f = File.createTempFile("regioClust", suffix);
+		f.deleteOnExit();
+		return f;
+	}
+
+	private void checkDist( Dist<double[]> expected, MatrixDist d, double delta ) {
+		assertEquals(N, d.getRowCount());
+		for( int i = 0; i < N; i++ )
+			for( int j = Math.max(0, i - BAND); j < Math.min(N, i + BAND + 1); j++ )
+				if( i != j ) {
+					double e = expected.dist(samples.get(i), samples.get(j));
+					assertEquals(e, d.dist(i, j), e * delta);
+					assertEquals(e, d.dist(samples.get(i), samples.get(j)), e * delta);
+				}
+	}
+
+	@Test
+	public void distances() throws IOException {
+		Map<double[], Map<double[], Double>> m = GeoUtils.readDistMatrixKeyValue(samples, csv);
+		DistMapDist<double[]> expected = new DistMapDist<>(m);
+
+		File f = tempFile(".csr");
+		CSRMatrix.convert(csv, f, -1, false, 2);
+		assertTrue(CSRMatrix.isCSR(f));
+		assertFalse(CSRMatrix.isCSR(csv));
+		checkDist(expected, GeoUtils.readDist(samples, f, 1, false), 0);
+
+		CSRMatrix.convert(csv, f, N, true, 1);
+		checkDist(expected, GeoUtils.readDist(samples, f, 1, false), 1e-7);
+
+		// from the CSV directly, not all pairs so sparse
+		for( boolean offHeap : new boolean[] { false, true } ) {
+			MatrixDist d = GeoUtils.readDist(samples, csv, 2, offHeap);
+			assertTrue(d instanceof CSRDist);
+			checkDist(expected, d, 0);
+		}
+
+		CSRMatrix c = CSRMatrix.read(f);
+		assertEquals(-1, c.find(0, BAND + 1));
+		assertEquals(-1, c.find(N - 1, N - 1));
+		try {
+			new CSRDist(c).dist(0, BAND + 1);
+			fail("No exception for a missing distance");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	@Test
+	public void contiguity() throws IOException {
+		int[][] expected = GeoUtils.readContiguityKeyValue(N, csv);
+		File f = tempFile(".csr");
+		KeyValueReader.Entries e = KeyValueReader.read(csv, 1);
+		CSRMatrix.write(f, N, e.from, e.to, null, e.m, false);
+		CSRMatrix c = CSRMatrix.read(f);
+		assertFalse(c.hasWeights());
+		assertEquals(e.m, c.getNonZeros());
+
+		int[][] cm = GeoUtils.readContiguity(N, f, 1);
+		for( int i = 0; i < N; i++ ) {
+			int[] l = expected[i].clone();
+			Arrays.sort(l);
+			assertArrayEquals(l, cm[i]); // sorted per row
+			for( int j : l )
+				assertTrue(c.find(i, j) >= 0);
+		}
+	}
+}
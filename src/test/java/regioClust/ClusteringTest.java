@@ -0,0 +1,200 @@
+package regioClust;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import regioClust.Clustering.HierarchicalClusteringType;
+import regioClust.Clustering.WardStats;
+
+public class ClusteringTest {
+
+	private static List<double[]> getSamples( int n, int d, long seed ) {
+		Random r = new Random(seed);
+		List<double[]> samples = new ArrayList<>();
+		for( int i = 0; i < n; i++ ) {
+			double[] s = new double[d];
+			for( int j = 0; j < d; j++ )
+				s[j] = r.nextGaussian() + (i % 3) * 2;
+			samples.add(s);
+		}
+		return samples;
+	}
+
+	private static List<double[]> get( List<double[]> samples, int[] rows ) {
+		List<double[]> l = new ArrayList<>();
+		for( int r : rows )
+			l.add(samples.get(r));
+		return l;
+	}
+
+	private static double[][] getColumns( List<double[]> samples, int[] idx ) {
+		double[][] cols = new double[idx.length][samples.size()];
+		for( int i = 0; i < samples.size(); i++ )
+			for( int j = 0; j < idx.length; j++ )
+				cols[j][i] = samples.get(i)[idx[j]];
+		return cols;
+	}
+
+	private static int[] sorted( int[] a ) {
+		int[] s = a.clone();
+		Arrays.sort(s);
+		return s;
+	}
+
+	// costs from counts and sums are the increase of the error sum of squares of the members
+	@Test
+	public void wardStats() {
+		List<double[]> samples = getSamples(60, 3, 1);
+		EuclideanDist dist = new EuclideanDist();
+		int[] a = new int[25], b = new int[35];
+		for( int i = 0; i < 60; i++ )
+			if( i < 25 )
+				a[i] = i;
+			else
+				b[i - 25] = i;
+
+		WardStats wa = new WardStats(samples, a, dist), wb = new WardStats(samples, b, dist);
+		double ssA = DataUtils.getSumOfSquares(get(samples, a), dist);
+		double ssB = DataUtils.getSumOfSquares(get(samples, b), dist);
+		double ssAB = DataUtils.getSumOfSquares(samples, dist);
+		assertEquals(ssA, wa.ss, 1e-9);
+		assertEquals(ssB, wb.ss, 1e-9);
+
+		double cost = wa.getMergeCost(wb, dist);
+		assertEquals(ssAB - ssA - ssB, cost, 1e-9);
+		WardStats wab = wa.merge(wb, cost);
+		assertEquals(60, wab.n);
+		assertEquals(ssAB, wab.ss, 1e-9);
+		assertArrayEquals(DataUtils.getMean(samples), wab.getMean(), 1e-12);
+
+		// on the columns of a distance with idx
+		int[] idx = { 0, 2 };
+		EuclideanDist di = new EuclideanDist(idx);
+		double[][] cols = getColumns(samples, idx);
+		WardStats ca = new WardStats(cols, a), cb = new WardStats(cols, b);
+		assertEquals(DataUtils.getSumOfSquares(get(samples, a), di), ca.ss, 1e-9);
+		assertEquals(new WardStats(samples, a, di).getMergeCost(new WardStats(samples, b, di), di), ca.getMergeCost(cb, new EuclideanDist()), 1e-9);
+	}
+
+	// linkage of two sets of rows from all their pairs
+	private static double getLinkage( HierarchicalClusteringType type, List<double[]> samples, int[] a, int[] b, Dist<double[]> dist ) {
+		double min = Double.POSITIVE_INFINITY, max = 0, sum = 0;
+		for( int i : a )
+			for( int j : b ) {
+				double d = dist.dist(samples.get(i), samples.get(j));
+				min = Math.min(min, d);
+				max = Math.max(max, d);
+				sum += d;
+			}
+		if( type == HierarchicalClusteringType.single_linkage )
+			return min;
+		if( type == HierarchicalClusteringType.complete_linkage )
+			return max;
+		return sum / (a.length * b.length);
+	}
+
+	// merges by greedily picking the connected pair with the least linkage from all pairs of members, for Ward the least
+	// increase of the error sum of squares of the members
+	private static List<int[]> getMerges( HierarchicalClusteringType type, List<double[]> samples, int[][] cm, Dist<double[]> dist, List<Double> costs ) {
+		List<int[]> clusters = new ArrayList<>();
+		for( int i = 0; i < samples.size(); i++ )
+			clusters.add(new int[] { i });
+		List<int[]> merges = new ArrayList<>();
+		while( true ) {
+			int bi = -1, bj = -1;
+			double best = Double.POSITIVE_INFINITY;
+			for( int i = 0; i < clusters.size(); i++ )
+				for( int j = i + 1; j < clusters.size(); j++ ) {
+					if( !connected(clusters.get(i), clusters.get(j), cm) )
+						continue;
+					double c = type != HierarchicalClusteringType.ward ? getLinkage(type, samples, clusters.get(i), clusters.get(j), dist)
+							: DataUtils.getSumOfSquares(get(samples, Clustering.concat(clusters.get(i), clusters.get(j))), dist)
+									- DataUtils.getSumOfSquares(get(samples, clusters.get(i)), dist) - DataUtils.getSumOfSquares(get(samples, clusters.get(j)), dist);
+					if( c < best ) {
+						best = c;
+						bi = i;
+						bj = j;
+					}
+				}
+			if( bi < 0 )
+				return merges;
+			int[] m = Clustering.concat(clusters.get(bi), clusters.get(bj));
+			clusters.remove(bj);
+			clusters.remove(bi);
+			clusters.add(m);
+			merges.add(sorted(m));
+			costs.add(best);
+		}
+	}
+
+	private static boolean connected( int[] a, int[] b, int[][] cm ) {
+		for( int i : a )
+			for( int nb : cm[i] )
+				for( int j : b )
+					if( nb == j )
+						return true;
+		return false;
+	}
+
+	// contiguity of a ring, so that only neighbouring clusters can be merged
+	private static int[][] getRing( int n ) {
+		int[][] cm = new int[n][];
+		for( int i = 0; i < n; i++ )
+			cm[i] = new int[] { (i + n - 1) % n, (i + 1) % n };
+		return cm;
+	}
+
+	private static void checkMerges( Dendrogram tree, List<int[]> merges, List<Double> costs ) {
+		int n = tree.getLeafCount();
+		assertEquals(merges.size(), tree.getNodeCount() - n);
+		for( int i = 0; i < merges.size(); i++ ) {
+			assertArrayEquals(merges.get(i), sorted(tree.getContents(n + i)));
+			assertEquals(costs.get(i), tree.getCost(n + i), 1e-9);
+		}
+	}
+
+	@Test
+	public void wardTree() {
+		List<double[]> samples = getSamples(40, 2, 2);
+		int[][] cm = getRing(samples.size());
+		EuclideanDist dist = new EuclideanDist();
+		List<Double> costs = new ArrayList<>();
+		List<int[]> merges = getMerges(HierarchicalClusteringType.ward, samples, cm, dist, costs);
+
+		Dendrogram tree = Clustering.getHierarchicalClusterTree(samples, cm, dist, HierarchicalClusteringType.ward);
+		checkMerges(tree, merges, costs);
+
+		// Ward statistics of columns, no rows
+		tree = new Dendrogram(samples.size());
+		Clustering.getHierarchicalClusterTree(null, getColumns(samples, new int[] { 0, 1 }), tree, tree.getLeaves(), cm, dist, HierarchicalClusteringType.ward, Integer.MAX_VALUE, 2, PairCostCache.DEFAULT_MAX_ENTRIES);
+		checkMerges(tree, merges, costs);
+	}
+
+	// Lance-Williams updates give the linkage of all pairs of members, also if most cached linkages are evicted
+	@Test
+	public void linkageTrees() {
+		List<double[]> samples = getSamples(40, 2, 3);
+		int[][] cm = getRing(samples.size());
+		EuclideanDist dist = new EuclideanDist();
+		for( HierarchicalClusteringType type : new HierarchicalClusteringType[] { HierarchicalClusteringType.single_linkage, HierarchicalClusteringType.complete_linkage, HierarchicalClusteringType.average_linkage } ) {
+			List<Double> costs = new ArrayList<>();
+			List<int[]> merges = getMerges(type, samples, cm, dist, costs);
+			for( long maxCosts : new long[] { PairCostCache.DEFAULT_MAX_ENTRIES, 8 } ) {
+				Dendrogram tree = new Dendrogram(samples.size());
+				Clustering.getHierarchicalClusterTree(samples, null, tree, tree.getLeaves(), cm, dist, type, Integer.MAX_VALUE, 2, maxCosts);
+				checkMerges(tree, merges, costs);
+			}
+			// distances of columns, no rows
+			Dendrogram tree = new Dendrogram(samples.size());
+			Clustering.getHierarchicalClusterTree(null, getColumns(samples, new int[] { 0, 1 }), tree, tree.getLeaves(), cm, dist, type, Integer.MAX_VALUE, 2, PairCostCache.DEFAULT_MAX_ENTRIES);
+			checkMerges(tree, merges, costs);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package regioClust;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class ContiguityTest {
+
+	private static final int W = 6;
+
+	private static final GeometryFactory gf = new GeometryFactory();
+
+	private static Geometry box( double x0, double y0, double x1, double y1 ) {
+		Coordinate[] ring = { new Coordinate(x0, y0), new Coordinate(x1, y0), new Coordinate(x1, y1), new Coordinate(x0, y1), new Coordinate(x0, y0) };
+		return gf.createPolygon(gf.createLinearRing(ring), null);
+	}
+
+	// neighbours of W x W unit squares, row i * W + j at (i,j)
+	private static int[][] getGrid( boolean rook ) {
+		int[][] r = new int[W * W][];
+		for( int i = 0; i < W; i++ )
+			for( int j = 0; j < W; j++ ) {
+				int[] l = new int[8];
+				int m = 0;
+				for( int di = -1; di <= 1; di++ )
+					for( int dj = -1; dj <= 1; dj++ )
+						if( ( di != 0 || dj != 0 ) && ( !rook || di == 0 || dj == 0 ) && i + di >= 0 && i + di < W && j + dj >= 0 && j + dj < W )
+							l[m++] = ( i + di ) * W + j + dj;
+				r[i * W + j] = Arrays.copyOf(l, m);
+				Arrays.sort(r[i * W + j]);
+			}
+		return r;
+	}
+
+	private static void check( int[][] expected, int[][] cm ) {
+		for( int i = 0; i < expected.length; i++ )
+			assertArrayEquals(expected[i], cm[i]);
+	}
+
+	@Test
+	public void grid() {
+		List<Geometry> geoms = new ArrayList<>();
+		for( int i = 0; i < W; i++ )
+			for( int j = 0; j < W; j++ )
+				geoms.add(box(i, j, i + 1, j + 1));
+		for( boolean rook : new boolean[] { false, true } ) {
+			check(getGrid(rook), GeoUtils.getContiguityMap(geoms, rook, false, 2));
+			check(getGrid(rook), GeoUtils.getContiguityMapFromBoundaries(geoms, rook, false, 0));
+		}
+	}
+
+	// a rectangle over two squares without a vertex where they meet, a square touching at a corner, an overlapping one
+	@Test
+	public void withoutCommonVertices() {
+		List<Geometry> geoms = Arrays.asList(box(0, 1, 2, 2), box(0, 0, 1, 1), box(1, 0, 2, 1), box(2, 2, 3, 3), box(1.5, 1.5, 2.5, 2.5));
+		check(new int[][] { { 1, 2, 4 }, { 0, 2 }, { 0, 1 }, { 4 }, { 0, 3 } }, GeoUtils.getContiguityMap(geoms, true, false, 1));
+		check(new int[][] { { 1, 2, 3, 4 }, { 0, 2 }, { 0, 1 }, { 0, 4 }, { 0, 3 } }, GeoUtils.getContiguityMap(geoms, false, false, 1));
+		check(new int[][] { {}, { 2 }, { 1 }, {}, {} }, GeoUtils.getContiguityMapFromBoundaries(geoms, true, false, 0));
+		check(new int[][] { { 1, 2, 3 }, { 0, 2 }, { 0, 1 }, { 0 }, {} }, GeoUtils.getContiguityMapFromBoundaries(geoms, false, false, 0));
+	}
+
+	// vertices on both sides of a cell border of the tolerance grid
+	@Test
+	public void snap() {
+		List<Geometry> geoms = Arrays.asList(box(0, 0, 0.999, 1), box(1.001, 0, 2, 1), box(2.2, 0, 3, 1));
+		check(new int[][] { { 1 }, { 0 }, {} }, GeoUtils.getContiguityMapFromBoundaries(geoms, true, false, 0.1));
+		check(new int[][] { {}, {}, {} }, GeoUtils.getContiguityMapFromBoundaries(geoms, true, false, 0.001));
+		check(new int[][] { { 1 }, { 0, 2 }, { 1 } }, GeoUtils.getContiguityMapFromBoundaries(geoms, false, false, 0.3));
+	}
+}
@@ -0,0 +1,134 @@
+package regioClust;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DendrogramTest {
+
+	// random merges of n leaves, stopped at roots trees
+	private static Dendrogram getTree( int n, int roots, Random r ) {
+		Dendrogram tree = new Dendrogram(n);
+		List<Integer> active = new ArrayList<>();
+		for( int i = 0; i < n; i++ )
+			active.add(i);
+		while( active.size() > roots ) {
+			int a = active.remove(r.nextInt(active.size()));
+			int b = active.remove(r.nextInt(active.size()));
+			active.add(tree.merge(a, b, tree.getNodeCount()));
+		}
+		return tree;
+	}
+
+	private static void getLeaves( Dendrogram tree, int node, List<Integer> l ) {
+		if( tree.isLeaf(node) )
+			l.add(node);
+		else {
+			getLeaves(tree, tree.getLeft(node), l);
+			getLeaves(tree, tree.getRight(node), l);
+		}
+	}
+
+	private static int[] sorted( int[] a ) {
+		int[] s = a.clone();
+		Arrays.sort(s);
+		return s;
+	}
+
+	// sets of leaves after replaying the merges of tree until k clusters are left
+	private static List<int[]> cut( Dendrogram tree, int k ) {
+		int n = tree.getLeafCount();
+		List<List<Integer>> clusters = new ArrayList<>();
+		int[] cluster = new int[n];
+		for( int i = 0; i < n; i++ ) {
+			clusters.add(new ArrayList<>(Arrays.asList(i)));
+			cluster[i] = i;
+		}
+		int nr = n;
+		for( int m = n; m < tree.getNodeCount() && nr > k; m++, nr-- ) {
+			int a = tree.getLeft(m), b = tree.getRight(m);
+			while( !tree.isLeaf(a) )
+				a = tree.getLeft(a);
+			while( !tree.isLeaf(b) )
+				b = tree.getLeft(b);
+			int ca = cluster[a], cb = cluster[b];
+			for( int i : clusters.get(cb) )
+				cluster[i] = ca;
+			clusters.get(ca).addAll(clusters.get(cb));
+			clusters.get(cb).clear();
+		}
+		List<int[]> r = new ArrayList<>();
+		for( List<Integer> c : clusters )
+			if( !c.isEmpty() ) {
+				int[] a = new int[c.size()];
+				for( int i = 0; i < a.length; i++ )
+					a[i] = c.get(i);
+				r.add(sorted(a));
+			}
+		return r;
+	}
+
+	private static List<int[]> contents( Dendrogram tree, int[] nodes ) {
+		List<int[]> r = new ArrayList<>();
+		for( int node : nodes )
+			r.add(sorted(tree.getContents(node)));
+		return r;
+	}
+
+	private static void assertSameClusters( List<int[]> a, List<int[]> b ) {
+		Comparator<int[]> byFirst = new Comparator<int[]>() {
+			@Override
+			public int compare( int[] x, int[] y ) {
+				return Integer.compare(x[0], y[0]);
+			}
+		};
+		a.sort(byFirst);
+		b.sort(byFirst);
+		assertEquals(a.size(), b.size());
+		for( int i = 0; i < a.size(); i++ )
+			assertArrayEquals(a.get(i), b.get(i));
+	}
+
+	@Test
+	public void contents() {
+		Dendrogram tree = getTree(50, 1, new Random(1));
+		assertEquals(99, tree.getNodeCount());
+		int[] order = tree.getOrder();
+		for( int node = 0; node < tree.getNodeCount(); node++ ) {
+			List<Integer> l = new ArrayList<>();
+			getLeaves(tree, node, l);
+			int[] c = tree.getContents(node);
+			assertEquals(l.size(), tree.getSize(node));
+			for( int i = 0; i < c.length; i++ ) {
+				assertEquals((int) l.get(i), c[i]);
+				assertEquals(c[i], order[tree.getStart(node) + i]);
+			}
+			if( tree.getParent(node) >= 0 )
+				assertTrue(tree.getAge(tree.getParent(node)) > tree.getAge(node));
+		}
+	}
+
+	@Test
+	public void cutTree() {
+		Random r = new Random(2);
+		for( int roots : new int[] { 1, 3 } ) {
+			Dendrogram tree = getTree(40, roots, r);
+			assertEquals(roots, tree.getRoots().length);
+			for( int k = 1; k <= 40; k++ )
+				assertSameClusters(cut(tree, k), contents(tree, tree.cutTree(k)));
+		}
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void cutTooMany() {
+		getTree(10, 1, new Random(3)).cutTree(11);
+	}
+}
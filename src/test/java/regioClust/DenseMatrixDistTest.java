@@ -0,0 +1,90 @@
+package regioClust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DenseMatrixDistTest {
+
+	private static final int N = 120;
+
+	private final List<double[]> samples = new ArrayList<>();
+	private final EuclideanDist euclid = new EuclideanDist();
+
+	public DenseMatrixDistTest() {
+		Random r = new Random(5);
+		for( int i = 0; i < N; i++ )
+			samples.add(new double[] { r.nextDouble(), r.nextDouble() });
+	}
+
+	private static File tempFile( String suffix ) throws IOException {
+		File f = File.createTempFile("regioClust", suffix);
+		f.deleteOnExit();
+		return f;
+	}
+
+	private void check( Dist<double[]> expected, MatrixDist d, double delta ) {
+		assertEquals(N, d.getRowCount());
+		for( int i = 0; i < N; i++ )
+			for( int j = 0; j < N; j++ ) {
+				double e = expected.dist(samples.get(i), samples.get(j));
+				assertEquals(e, d.dist(i, j), e * delta);
+				assertEquals(e, d.dist(samples.get(i), samples.get(j)), e * delta);
+			}
+	}
+
+	@Test
+	public void setAndWrite() throws IOException {
+		for( boolean float32 : new boolean[] { false, true } )
+			for( boolean offHeap : new boolean[] { false, true } ) {
+				double delta = float32 ? 1e-7 : 0;
+				DenseMatrixDist d = new DenseMatrixDist(N, float32, offHeap);
+				assertEquals((long) N * (N - 1) / 2, d.getSize());
+				for( int i = 0; i < N; i++ )
+					for( int j = 0; j < i; j++ )
+						d.set(i, j, euclid.dist(samples.get(i), samples.get(j)));
+				d.setSamples(samples);
+				check(euclid, d, delta);
+
+				File f = tempFile(".dense");
+				d.write(f);
+				assertTrue(DenseMatrixDist.isDense(f));
+				assertFalse(CSRMatrix.isCSR(f));
+				check(euclid, GeoUtils.readDist(samples, f, 1, false), delta);
+			}
+	}
+
+	@Test
+	public void fromKeyValue() throws IOException {
+		File csv = tempFile(".csv");
+		FileWriter fw = new FileWriter(csv);
+		fw.write("id1,id2,dist\n");
+		for( int i = 0; i < N; i++ )
+			for( int j = 0; j < N; j++ )
+				fw.write(i + "," + j + "," + euclid.dist(samples.get(i), samples.get(j)) + "\n");
+		fw.close();
+
+		Map<double[], Map<double[], Double>> m = GeoUtils.readDistMatrixKeyValue(samples, csv);
+		MatrixDist d = GeoUtils.readDist(samples, csv, 2, false);
+		assertTrue(d instanceof DenseMatrixDist); // all pairs
+		check(new DistMapDist<>(m), d, 0);
+
+		// a missing pair gives no dense matrix
+		KeyValueReader.Entries e = KeyValueReader.read(csv, 1);
+		for( int l = 0; l < e.m; l++ )
+			if( Math.min(e.from[l], e.to[l]) == 3 && Math.max(e.from[l], e.to[l]) == 4 )
+				e.to[l] = e.from[l];
+		assertNull(DenseMatrixDist.create(N, e.from, e.to, e.values, e.m, false, false));
+	}
+}
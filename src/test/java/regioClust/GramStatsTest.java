@@ -0,0 +1,170 @@
+package regioClust;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GramStatsTest {
+
+	private static final int[] FA = { 0, 1, 2 };
+	private static final int TA = 3;
+
+	private static List<double[]> getSamples( int n, long seed ) {
+		Random r = new Random(seed);
+		List<double[]> samples = new ArrayList<>();
+		for( int i = 0; i < n; i++ ) {
+			double x0 = r.nextDouble() * 10, x1 = r.nextGaussian(), x2 = r.nextDouble();
+			samples.add(new double[] { x0, x1, x2, 1.5 * x0 - 2 * x1 + 0.5 * x2 + 3 + r.nextGaussian() });
+		}
+		return samples;
+	}
+
+	// least squares coefficients of columns fa and an intercept last, by modified Gram-Schmidt
+	private static double[] solveQR( List<double[]> samples, int[] rows, int[] fa, int ta ) {
+		int n = rows.length, p = fa.length + 1;
+		double[][] q = new double[p][n];
+		double[] y = new double[n];
+		for( int i = 0; i < n; i++ ) {
+			double[] d = samples.get(rows[i]);
+			for( int j = 0; j < fa.length; j++ )
+				q[j][i] = d[fa[j]];
+			q[fa.length][i] = 1;
+			y[i] = d[ta];
+		}
+		double[][] r = new double[p][p];
+		for( int j = 0; j < p; j++ ) {
+			for( int k = 0; k < j; k++ ) {
+				double s = 0;
+				for( int i = 0; i < n; i++ )
+					s += q[k][i] * q[j][i];
+				r[k][j] = s;
+				for( int i = 0; i < n; i++ )
+					q[j][i] -= s * q[k][i];
+			}
+			double s = 0;
+			for( int i = 0; i < n; i++ )
+				s += q[j][i] * q[j][i];
+			r[j][j] = Math.sqrt(s);
+			for( int i = 0; i < n; i++ )
+				q[j][i] /= r[j][j];
+		}
+		double[] beta = new double[p];
+		for( int j = p - 1; j >= 0; j-- ) {
+			double s = 0;
+			for( int i = 0; i < n; i++ )
+				s += q[j][i] * y[i];
+			for( int k = j + 1; k < p; k++ )
+				s -= r[j][k] * beta[k];
+			beta[j] = s / r[j][j];
+		}
+		return beta;
+	}
+
+	private static double getRSS( List<double[]> samples, int[] rows, int[] fa, int ta, double[] beta ) {
+		double rss = 0;
+		for( int r : rows ) {
+			double[] d = samples.get(r);
+			double e = d[ta] - beta[fa.length];
+			for( int j = 0; j < fa.length; j++ )
+				e -= beta[j] * d[fa[j]];
+			rss += e * e;
+		}
+		return rss;
+	}
+
+	private static int[] range( int from, int to ) {
+		int[] r = new int[to - from];
+		for( int i = 0; i < r.length; i++ )
+			r[i] = from + i;
+		return r;
+	}
+
+	private static double[][] getColumns( List<double[]> samples, int[] fa, int ta ) {
+		double[][] x = new double[fa.length + 2][samples.size()];
+		for( int i = 0; i < samples.size(); i++ ) {
+			for( int j = 0; j < fa.length; j++ )
+				x[j][i] = samples.get(i)[fa[j]];
+			x[fa.length][i] = 1;
+			x[fa.length + 1][i] = samples.get(i)[ta];
+		}
+		return x;
+	}
+
+	@Test
+	public void rss() {
+		List<double[]> samples = getSamples(200, 1);
+		int[] rows = range(0, 200);
+		double[] beta = solveQR(samples, rows, FA, TA);
+		double rss = getRSS(samples, rows, FA, TA, beta);
+
+		GramStats g = new GramStats(samples, rows, FA, TA);
+		assertEquals(200, g.n);
+		assertArrayEquals(beta, g.getBeta(), 1e-9);
+		assertEquals(rss, g.getRSS(), rss * 1e-9);
+
+		// from columns
+		double[][] x = getColumns(samples, FA, TA);
+		GramStats c = new GramStats(Arrays.copyOf(x, FA.length + 1), x[FA.length + 1], rows);
+		assertEquals(rss, c.getRSS(), rss * 1e-9);
+		for( int i = 0; i <= FA.length; i++ )
+			assertArrayEquals(g.xtx[i], c.xtx[i], 1e-6);
+	}
+
+	// statistics of a union by merging those of its parts
+	@Test
+	public void merge() {
+		List<double[]> samples = getSamples(150, 2);
+		int[] a = range(0, 60), b = range(60, 150), ab = range(0, 150);
+		double rss = getRSS(samples, ab, FA, TA, solveQR(samples, ab, FA, TA));
+		GramStats ga = new GramStats(samples, a, FA, TA), gb = new GramStats(samples, b, FA, TA);
+		assertEquals(rss, ga.merge(gb).getRSS(), rss * 1e-9);
+		assertEquals(rss, ga.getRSS(gb), rss * 1e-9);
+		assertEquals(150, ga.merge(gb).n);
+	}
+
+	// a copy of a column, RSS is that of the fit without it
+	@Test
+	public void singular() {
+		List<double[]> samples = getSamples(100, 3);
+		for( double[] d : samples )
+			d[2] = d[0];
+		int[] rows = range(0, 100);
+		int[] fa = { 0, 1 };
+		double rss = getRSS(samples, rows, fa, TA, solveQR(samples, rows, fa, TA));
+		GramStats g = new GramStats(samples, rows, FA, TA);
+		assertEquals(rss, g.getRSS(), rss * 1e-9);
+		assertEquals(rss, getRSS(samples, rows, FA, TA, g.getBeta()), rss * 1e-9);
+
+		// fewer rows than coefficients, a perfect fit
+		assertEquals(0, new GramStats(samples, range(0, 3), FA, TA).getRSS(), 1e-9);
+
+		// standard errors from the pseudo-inverse
+		assertTrue(new LinearModel(samples, FA, TA, false).getInference(1).singular[0]);
+		assertFalse(new LinearModel(samples, fa, TA, false).getInference(1).singular[0]);
+	}
+
+	// standard errors of a simple regression in closed form
+	@Test
+	public void standardErrors() {
+		List<double[]> samples = getSamples(80, 4);
+		int[] fa = { 0 };
+		double n = samples.size(), mean = 0, sxx = 0;
+		for( double[] d : samples )
+			mean += d[0] / n;
+		for( double[] d : samples )
+			sxx += (d[0] - mean) * (d[0] - mean);
+		LinearModel lm = new LinearModel(samples, fa, TA, false);
+		LinearModel.Inference inf = lm.getInference(1);
+		double sigma = lm.getRSS() / (n - 2);
+		assertArrayEquals(new double[] { Math.sqrt(sigma / sxx), Math.sqrt(sigma * (1 / n + mean * mean / sxx)) }, inf.se[0], 1e-9);
+		assertFalse(inf.singular[0]);
+	}
+}
@@ -0,0 +1,100 @@
+package regioClust;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class KDTreeTest {
+
+	// Euclidean, but not an EuclideanDist, so getKNNs() does not use a KD-tree
+	private static Dist<double[]> bruteForce( final EuclideanDist d ) {
+		return new Dist<double[]>() {
+			@Override
+			public double dist( double[] a, double[] b ) {
+				return d.dist(a, b);
+			}
+		};
+	}
+
+	// integer coordinates have many ties, which are broken by row
+	private static List<double[]> getSamples( int n, int d, boolean grid, long seed ) {
+		Random r = new Random(seed);
+		List<double[]> samples = new ArrayList<>();
+		for( int i = 0; i < n; i++ ) {
+			double[] s = new double[d];
+			for( int j = 0; j < d; j++ )
+				s[j] = grid ? r.nextInt(10) : r.nextGaussian();
+			samples.add(s);
+		}
+		return samples;
+	}
+
+	private static void checkKNNs( List<double[]> samples, EuclideanDist dist, int k, boolean includeIdentity ) {
+		Map<double[], List<double[]>> expected = GeoUtils.getKNNs(samples, bruteForce(dist), k, includeIdentity, 2);
+		Map<double[], List<double[]>> knn = GeoUtils.getKNNs(samples, dist, k, includeIdentity, 2);
+		for( double[] s : samples ) {
+			List<double[]> e = expected.get(s), l = knn.get(s);
+			assertEquals(e.size(), l.size());
+			for( int i = 0; i < e.size(); i++ )
+				assertTrue(e.get(i) == l.get(i));
+		}
+	}
+
+	@Test
+	public void knn() {
+		for( boolean grid : new boolean[] { false, true } )
+			for( int k : new int[] { 1, 4, 12 } ) {
+				checkKNNs(getSamples(500, 2, grid, k), new EuclideanDist(), k, false);
+				checkKNNs(getSamples(500, 2, grid, k), new EuclideanDist(), k, true);
+				checkKNNs(getSamples(300, 4, grid, k), new EuclideanDist(new int[] { 3, 1, 0 }), k, false);
+			}
+		// k larger than the number of other samples
+		checkKNNs(getSamples(5, 2, false, 1), new EuclideanDist(), 10, false);
+	}
+
+	@Test
+	public void nearest() {
+		List<double[]> samples = getSamples(1000, 2, true, 3);
+		KDTree t = new KDTree(samples, null);
+		KDTree.Buffer b = new KDTree.Buffer();
+		Random r = new Random(4);
+		for( int i = 0; i < 2000; i++ ) {
+			double[] q = { r.nextDouble() * 12 - 1, r.nextDouble() * 12 - 1 };
+			int best = -1;
+			double bd = Double.POSITIVE_INFINITY;
+			for( int j = 0; j < samples.size(); j++ ) {
+				double dx = q[0] - samples.get(j)[0], dy = q[1] - samples.get(j)[1];
+				if( dx * dx + dy * dy < bd ) {
+					bd = dx * dx + dy * dy;
+					best = j;
+				}
+			}
+			assertEquals(best, t.nearest(q, b));
+			assertArrayEquals(new int[] { best }, t.knn(q, 1, -1));
+		}
+		assertEquals(-1, new KDTree(new ArrayList<double[]>(), null).nearest(new double[2], b));
+	}
+
+	@Test
+	public void knnContiguity() {
+		List<double[]> samples = getSamples(400, 2, false, 5);
+		int k = 5;
+		int[][] cm = GeoUtils.getKNNContiguityMap(samples, null, k, false, 2);
+		int[][] nb = new KDTree(samples, null).knn(k, false, 1);
+		for( int i = 0; i < cm.length; i++ ) {
+			assertTrue(cm[i].length >= k);
+			for( int j : nb[i] ) {
+				assertTrue(Arrays.binarySearch(cm[i], j) >= 0);
+				assertTrue(Arrays.binarySearch(cm[j], i) >= 0);
+			}
+		}
+	}
+}
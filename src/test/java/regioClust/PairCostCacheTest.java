@@ -0,0 +1,105 @@
+package regioClust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PairCostCacheTest {
+
+	private static long key( int a, int b ) {
+		return (long) Math.min(a, b) << 32 | Math.max(a, b);
+	}
+
+	// random puts, gets and invalidations. A cached cost is the one put last, evicted and dead pairs are NaN.
+	private static void check( int n, long maxEntries, boolean evicts ) {
+		PairCostCache cache = new PairCostCache(n, maxEntries, 8);
+		Map<Long, Double> costs = new HashMap<>();
+		boolean[] dead = new boolean[n];
+		Random r = new Random(maxEntries);
+		int misses = 0;
+		for( int i = 0; i < 200000; i++ ) {
+			int a = r.nextInt(n), b = r.nextInt(n);
+			if( a == b )
+				continue;
+			int op = r.nextInt(100);
+			if( op < 50 ) {
+				double c = r.nextDouble();
+				cache.put(a, b, c);
+				if( !dead[a] && !dead[b] )
+					costs.put(key(a, b), c);
+			} else if( op < 99 ) {
+				double c = cache.get(a, b);
+				Double e = costs.get(key(a, b));
+				if( dead[a] || dead[b] || e == null )
+					assertTrue(Double.isNaN(c));
+				else if( Double.isNaN(c) )
+					misses++;
+				else
+					assertEquals(e, c, 0);
+			} else if( !dead[a] ) {
+				cache.invalidate(a);
+				dead[a] = true;
+			}
+			assertTrue(cache.size() <= maxEntries);
+		}
+		if( !evicts )
+			assertEquals(0, misses);
+		else
+			assertTrue(misses > 0);
+	}
+
+	@Test
+	public void unbounded() {
+		check(2000, PairCostCache.DEFAULT_MAX_ENTRIES, false);
+	}
+
+	@Test
+	public void bounded() {
+		check(2000, 1024, true);
+		check(200, 64, true);
+	}
+
+	// threads put and get disjoint pairs and invalidate their own nodes
+	@Test
+	public void concurrent() throws InterruptedException {
+		final int threads = 4, n = 4000;
+		final PairCostCache cache = new PairCostCache(n, 1 << 14);
+		final AtomicInteger bad = new AtomicInteger();
+		Thread[] t = new Thread[threads];
+		for( int k = 0; k < threads; k++ ) {
+			final int id = k;
+			t[k] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(id);
+					for( int i = 0; i < 100000; i++ ) {
+						int a = r.nextInt(n / threads) * threads + id, b = r.nextInt(n / threads) * threads + id;
+						if( a == b )
+							continue;
+						double c = a + b;
+						cache.put(a, b, c);
+						double g = cache.get(a, b);
+						if( !Double.isNaN(g) && g != c )
+							bad.incrementAndGet();
+						if( i % 1000 == 0 ) {
+							cache.invalidate(a);
+							if( !Double.isNaN(cache.get(a, b)) )
+								bad.incrementAndGet();
+						}
+					}
+				}
+			};
+			t[k].start();
+		}
+		for( Thread th : t )
+			th.join();
+		assertEquals(0, bad.get());
+		assertTrue(cache.size() <= 1 << 14);
+	}
+}
@@ -0,0 +1,109 @@
+package regioClust;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class PredictorTest {
+
+	private static final int W = 20;
+
+	private final List<double[]> samples = new ArrayList<>();
+	private final List<Geometry> geoms = new ArrayList<>();
+	private final List<int[]> cluster = new ArrayList<>();
+	private final double[][] columns = new double[2][W * W];
+
+	// W x W unit squares in clusters of 4 columns, each with its own linear model
+	public PredictorTest() {
+		GeometryFactory gf = new GeometryFactory();
+		Random r = new Random(42);
+		for( int i = 0; i < W; i++ )
+			for( int j = 0; j < W; j++ ) {
+				double x = r.nextDouble(), c = i / 4;
+				samples.add(new double[] { x, (c + 1) * x + c + r.nextGaussian() * 0.1 });
+				columns[0][i * W + j] = x;
+				columns[1][i * W + j] = samples.get(i * W + j)[1];
+				Coordinate[] ring = { new Coordinate(i, j), new Coordinate(i + 1, j), new Coordinate(i + 1, j + 1), new Coordinate(i, j + 1), new Coordinate(i, j) };
+				geoms.add(gf.createPolygon(gf.createLinearRing(ring), null));
+			}
+		for( int c = 0; c < W / 4; c++ ) {
+			int[] rows = new int[4 * W];
+			for( int k = 0; k < rows.length; k++ )
+				rows[k] = (4 * c + k / W) * W + k % W;
+			cluster.add(rows);
+		}
+	}
+
+	private Predictor roundTrip( LinearModel lm ) throws IOException {
+		File f = File.createTempFile("regioClust", ".model");
+		f.deleteOnExit();
+		Predictor.write(f, lm, geoms, new String[] { "x" }, 2);
+		return Predictor.read(f);
+	}
+
+	private void checkRoundTrip( boolean zScore ) throws IOException {
+		LinearModel lm = new LinearModel(samples, cluster, new int[] { 0 }, 1, zScore);
+		Predictor p = roundTrip(lm);
+		assertArrayEquals(new String[] { "x" }, p.getNames());
+		assertEquals(cluster.size(), p.getRegionCount());
+		for( int c = 0; c < cluster.size(); c++ )
+			assertArrayEquals(lm.getBeta(c), p.getBeta(c), 0);
+
+		// the same model from columns
+		LinearModel lc = new LinearModel(columns, cluster, new int[] { 0 }, 1, zScore);
+		for( int c = 0; c < cluster.size(); c++ )
+			assertArrayEquals(lm.getBeta(c), lc.getBeta(c), 1e-12);
+		assertArrayEquals(lm.getFit().residuals, lc.getFit().residuals, 1e-12);
+		assertArrayEquals(lm.getInference(1).se[0], lc.getInference(1).se[0], 1e-12);
+
+		// centres of the squares are in the region of their cluster and get the prediction of the fit
+		double[] pred = lm.getFit().predictions;
+		int[] labels = lm.getLabels();
+		for( int i = 0; i < samples.size(); i++ ) {
+			int j = p.locate(i / W + 0.5, i % W + 0.5, -1);
+			assertEquals(labels[i], j);
+			assertEquals(pred[i], p.predict(j, samples.get(i), 0), 1e-12);
+		}
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		checkRoundTrip(false);
+	}
+
+	@Test
+	public void roundTripZScore() throws IOException {
+		checkRoundTrip(true);
+	}
+
+	@Test
+	public void outside() throws IOException {
+		Predictor p = roundTrip(new LinearModel(samples, cluster, new int[] { 0 }, 1, false));
+		assertEquals(-1, p.locate(-0.5, 3, -1));
+		assertEquals(0, p.locateNearest(-0.5, 3));
+		assertEquals(cluster.size() - 1, p.locateNearest(W + 3, 3));
+		// on the boundary of regions 0 and 1, covered by both, the hint is kept
+		int j = p.locate(4, 3, -1);
+		assertTrue(j == 0 || j == 1);
+		assertEquals(1, p.locate(4, 3, 1));
+		assertEquals(0, p.locate(4, 3, 0));
+
+		double[] out = new double[1];
+		p.predict(new double[] { 0.5 }, new double[] { -0.5 }, new double[] { 3 }, out, false);
+		assertTrue(Double.isNaN(out[0]));
+		p.predict(new double[] { 0.5 }, new double[] { -0.5 }, new double[] { 3 }, out, true);
+		assertEquals(p.predict(0, new double[] { 0.5 }, 0), out[0], 0);
+	}
+}
@@ -0,0 +1,79 @@
+package regioClust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ShapeReaderTest {
+
+	private static final String[] NAMES = { "A", "B" };
+	private static final int[] LENGTHS = { 8, 5 };
+
+	// dBase III file of numeric fields A and B, a record starts with its deletion flag
+	private static File writeDbf( String... records ) throws IOException {
+		int headerLength = 32 + 32 * NAMES.length + 1, recordLength = 1 + LENGTHS[0] + LENGTHS[1];
+		ByteBuffer b = ByteBuffer.allocate(headerLength + records.length * recordLength + 1).order(ByteOrder.LITTLE_ENDIAN);
+		b.put(0, (byte) 3);
+		b.putInt(4, records.length);
+		b.putShort(8, (short) headerLength);
+		b.putShort(10, (short) recordLength);
+		for( int i = 0; i < NAMES.length; i++ ) {
+			int p = 32 + 32 * i;
+			byte[] name = NAMES[i].getBytes(StandardCharsets.US_ASCII);
+			for( int j = 0; j < name.length; j++ )
+				b.put(p + j, name[j]);
+			b.put(p + 11, (byte) 'N');
+			b.put(p + 16, (byte) LENGTHS[i]);
+		}
+		b.put(headerLength - 1, (byte) 0x0d);
+		for( int i = 0; i < records.length; i++ ) {
+			assertEquals(recordLength, records[i].length());
+			byte[] r = records[i].getBytes(StandardCharsets.US_ASCII);
+			for( int j = 0; j < r.length; j++ )
+				b.put(headerLength + i * recordLength + j, r[j]);
+		}
+		b.put(headerLength + records.length * recordLength, (byte) 0x1a);
+
+		File f = File.createTempFile("regioClust", ".dbf");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(b.array());
+		out.close();
+		return f;
+	}
+
+	// blank values are NULL, deleted records are kept so that they match the shapes by position
+	@Test
+	public void nullAndDeleted() throws IOException {
+		File f = writeDbf("  1.5e+00   12", "    -2.25     ", "*    3.00   -7");
+		double[][] v = ShapeReader.readDbf(f, new int[] { 1, 0 }, 2);
+		assertEquals(2, v.length);
+		assertEquals(3, v[0].length);
+		assertEquals(12, v[0][0], 0);
+		assertTrue(Double.isNaN(v[0][1]));
+		assertEquals(-7, v[0][2], 0);
+		assertEquals(1.5, v[1][0], 0);
+		assertEquals(-2.25, v[1][1], 0);
+		assertEquals(3, v[1][2], 0);
+	}
+
+	@Test
+	public void invalid() throws IOException {
+		File f = writeDbf("     1.00   12", "     2.00   x3");
+		try {
+			ShapeReader.readDbf(f, new int[] { 0, 1 }, 1);
+			fail("No exception for an invalid value");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("B in record 1"));
+		}
+	}
+}